@@ -23,18 +23,27 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import traul.ranked.nta.BinaryOperators;
 import traul.ranked.nta.IBinaryOperators;
 import traul.ranked.nta.INTA;
 import be.ac.umons.info.routing.actions.IAction;
+import be.ac.umons.info.routing.automata.AlphabetAbstraction;
+import be.ac.umons.info.routing.automata.AlphabetCache;
+import be.ac.umons.info.routing.automata.CompositionPlanner;
+import be.ac.umons.info.routing.automata.EquivalenceStrategy;
 import be.ac.umons.info.routing.automata.FilterAutomaton;
 import be.ac.umons.info.routing.automata.FilterState;
 import be.ac.umons.info.routing.automata.IntegerLabel;
 import be.ac.umons.info.routing.automata.LabelPair;
+import be.ac.umons.info.routing.automata.NaryEquivalence;
 import be.ac.umons.info.routing.automata.RouteAlphabet;
+import be.ac.umons.info.routing.automata.StateReduction;
 import traul.ranked.terms.ITerm;
 
 /**
@@ -86,13 +95,33 @@ public class Filter {
 	public List<IFilterRule> getRules() {
 		return this.filterRules;
 	}
+
+	/**
+	 * Returns the local preference set to incoming routes.
+	 */
+	public int getInitialLocalPref() {
+		return this.initialLocalPref;
+	}
 	
 	/**
 	 * Builds the automaton recognizing this filter's language. This is just
 	 * obtained by composing the automata of its rules, and then restrict to
-	 * valid routes.
+	 * valid routes. Only the states reachable from the leaves are built.
 	 */
 	public FilterAutomaton automaton(final RouteAlphabet routeAlphabet) {
+		return automaton(routeAlphabet, StateReduction.NONE);
+	}
+
+	/**
+	 * Builds the automaton of this filter, like 
+	 * {@link #automaton(RouteAlphabet)}, where each intermediate automaton,
+	 * and the result, are reduced in the given way.
+	 * @param routeAlphabet the alphabet of routes
+	 * @param reduction the way of reducing the intermediate automata
+	 * @return the filter automaton, considering only valid routes
+	 */
+	public FilterAutomaton automaton(final RouteAlphabet routeAlphabet,
+			final StateReduction reduction) {
 
 		FilterAutomaton automaton = null;
 		for (IFilterRule filterRule : this.filterRules){
@@ -101,10 +130,109 @@ public class Filter {
 			if (automaton==null) {
 				automaton = ruleAutomaton;
 			} else {
-				automaton = ruleAutomaton.compose(automaton);
+				automaton = reduction.reduce(
+					ruleAutomaton.composeReachable(automaton));
+			}
+		}
+		return reduction.reduce(
+			automaton.automatonForValidRoutes(routeAlphabet));
+	}
+
+	/**
+	 * Builds the automaton of this filter, like 
+	 * {@link #automaton(RouteAlphabet)}, where the automata of the rules (and
+	 * of the actions of each rule) are composed in the order chosen by the
+	 * given planner. The planner then reports its plans.
+	 * @param routeAlphabet the alphabet of routes
+	 * @param planner the planner choosing the order of the compositions
+	 * @return the filter automaton, considering only valid routes
+	 */
+	public FilterAutomaton automaton(final RouteAlphabet routeAlphabet,
+			final CompositionPlanner planner) {
+		if (this.filterRules.isEmpty()) {
+			return automaton(routeAlphabet);
+		}
+		List<FilterAutomaton> ruleAutomata = new ArrayList<FilterAutomaton>();
+		for (IFilterRule filterRule : this.filterRules) {
+			ruleAutomata.add(filterRule.automaton(routeAlphabet, planner));
+		}
+		return planner.compose(ruleAutomata)
+			.automatonForValidRoutes(routeAlphabet);
+	}
+
+	/**
+	 * Builds the automaton of this filter, like 
+	 * {@link #automaton(RouteAlphabet)}, in parallel: the automata of the 
+	 * rules are built concurrently, and they are composed along a balanced 
+	 * tree (composition being associative), whose nodes also compose their
+	 * branches in parallel.
+	 * @param routeAlphabet the alphabet of routes
+	 * @param pool the pool running the construction
+	 * @return the filter automaton, considering only valid routes
+	 */
+	public FilterAutomaton automaton(final RouteAlphabet routeAlphabet,
+			final ForkJoinPool pool) {
+		return automaton(routeAlphabet, pool, StateReduction.NONE);
+	}
+
+	/**
+	 * Builds the automaton of this filter in parallel, like 
+	 * {@link #automaton(RouteAlphabet, ForkJoinPool)}, where each 
+	 * intermediate automaton, and the result, are reduced in the given way.
+	 * @param routeAlphabet the alphabet of routes
+	 * @param pool the pool running the construction
+	 * @param reduction the way of reducing the intermediate automata
+	 * @return the filter automaton, considering only valid routes
+	 */
+	public FilterAutomaton automaton(final RouteAlphabet routeAlphabet,
+			final ForkJoinPool pool, final StateReduction reduction) {
+		if (this.filterRules.isEmpty()) {
+			return automaton(routeAlphabet, reduction);
+		}
+		final FilterAutomaton automaton = pool.invoke(new RuleReduction(
+			routeAlphabet, pool, reduction, 0, this.filterRules.size()));
+		return reduction.reduce(
+			automaton.automatonForValidRoutes(routeAlphabet));
+	}
+
+	/**
+	 * Task building the composition of the automata of the rules in
+	 * [from,to), the last rule being applied last.
+	 */
+	private final class RuleReduction extends RecursiveTask<FilterAutomaton> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RouteAlphabet routeAlphabet;
+		private final ForkJoinPool pool;
+		private final StateReduction reduction;
+		private final int from, to;
+
+		RuleReduction(final RouteAlphabet routeAlphabet, 
+				final ForkJoinPool pool, final StateReduction reduction,
+				final int from, final int to) {
+			this.routeAlphabet = routeAlphabet;
+			this.pool = pool;
+			this.reduction = reduction;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected FilterAutomaton compute() {
+			if (this.to-this.from == 1) {
+				return filterRules.get(this.from).automaton(this.routeAlphabet);
 			}
+			final int middle = (this.from+this.to)/2;
+			final RuleReduction first = new RuleReduction(this.routeAlphabet,
+				this.pool, this.reduction, this.from, middle);
+			final RuleReduction last = new RuleReduction(this.routeAlphabet,
+				this.pool, this.reduction, middle, this.to);
+			first.fork();
+			final FilterAutomaton lastAutomaton = last.compute();
+			return this.reduction.reduce(
+				lastAutomaton.composeReachable(first.join(), this.pool));
 		}
-		return automaton.automatonForValidRoutes(routeAlphabet);
 	}
 	
 	/**
@@ -114,11 +242,65 @@ public class Filter {
 	 */
 	public boolean equivalent(final Filter otherFilter) {
 		final RouteAlphabet commonRouteAlphabet = 
-			this.filterAlphabet().union(otherFilter.filterAlphabet());
+			AlphabetCache.routeAlphabet(
+				this.filterAlphabet().union(otherFilter.filterAlphabet()));
 		return this.automaton(commonRouteAlphabet).equivalent(
 			otherFilter.automaton(commonRouteAlphabet));
 	}
 	
+	/**
+	 * Checks the equivalence of two filters, like {@link #equivalent(Filter)},
+	 * with the given strategy.
+	 * @param otherFilter the other filter to be compared with
+	 * @param strategy the way of checking the equivalence of the automata
+	 * @return true iff both filters are equivalent
+	 */
+	public boolean equivalent(final Filter otherFilter,
+			final EquivalenceStrategy strategy) {
+		final RouteAlphabet commonRouteAlphabet = 
+			AlphabetCache.routeAlphabet(
+				this.filterAlphabet().union(otherFilter.filterAlphabet()));
+		return this.automaton(commonRouteAlphabet).equivalent(
+			otherFilter.automaton(commonRouteAlphabet), strategy);
+	}
+
+	/**
+	 * Checks that filters are all equivalent, by a single exploration of the
+	 * product of their automata, built on a common alphabet. The result 
+	 * tells which filters disagree with the first one, and on which route.
+	 * @param filters the filters to be compared (at most 32)
+	 * @return the comparison of the filters
+	 */
+	public static NaryEquivalence equivalence(final List<Filter> filters) {
+		RouteAlphabet union = filters.get(0).filterAlphabet();
+		for (Filter filter : filters) {
+			union = union.union(filter.filterAlphabet());
+		}
+		final RouteAlphabet alphabet = AlphabetCache.routeAlphabet(union);
+		final List<FilterAutomaton> automata = new ArrayList<FilterAutomaton>();
+		for (Filter filter : filters) {
+			automata.add(filter.automaton(alphabet));
+		}
+		return new NaryEquivalence(automata);
+	}
+
+	/**
+	 * Checks the equivalence of two filters on a given alphabet, for instance
+	 * the full list of communities of a network. Values of the alphabet that
+	 * are not referenced by the filters are first collapsed (see 
+	 * {@link AlphabetAbstraction}).
+	 * @param otherFilter the other filter to be compared with
+	 * @param routeAlphabet the values that routes may carry
+	 * @return true iff both filters are equivalent
+	 */
+	public boolean equivalent(final Filter otherFilter, 
+			final RouteAlphabet routeAlphabet) {
+		final RouteAlphabet alphabet = 
+			abstractAlphabet(otherFilter, routeAlphabet);
+		return this.automaton(alphabet).equivalent(
+			otherFilter.automaton(alphabet));
+	}
+	
 	/**
 	 * Checks the equivalence of two filters (main goal of this project).
 	 * Here we use the usual Boolean operations on automata in order to test
@@ -129,7 +311,8 @@ public class Filter {
 	 */
 	public boolean equivalentUsingBooleanOperations(final Filter otherFilter) {
 		final RouteAlphabet alphabet = 
-			this.filterAlphabet().union(otherFilter.filterAlphabet());
+			AlphabetCache.routeAlphabet(
+				this.filterAlphabet().union(otherFilter.filterAlphabet()));
 		final INTA<LabelPair,FilterState> auto1 = 
 			this.automaton(alphabet).automatonForValidRoutes(alphabet);
 		final INTA<LabelPair,FilterState> auto2 = 
@@ -147,11 +330,62 @@ public class Filter {
 	 */
 	public ITerm<LabelPair> separatingRoute(final Filter otherFilter) {
 		final RouteAlphabet commonRouteAlphabet = 
-			this.filterAlphabet().union(otherFilter.filterAlphabet());
+			AlphabetCache.routeAlphabet(
+				this.filterAlphabet().union(otherFilter.filterAlphabet()));
 		return this.automaton(commonRouteAlphabet)
 			.separationRoute(otherFilter.automaton(commonRouteAlphabet));
 	}
 
+	/**
+	 * Returns a route which is treated differently by the two filters, like
+	 * {@link #separatingRoute(Filter)}, with the given strategy.
+	 */
+	public ITerm<LabelPair> separatingRoute(final Filter otherFilter,
+			final EquivalenceStrategy strategy) {
+		final RouteAlphabet commonRouteAlphabet = 
+			AlphabetCache.routeAlphabet(
+				this.filterAlphabet().union(otherFilter.filterAlphabet()));
+		return this.automaton(commonRouteAlphabet).separationRoute(
+			otherFilter.automaton(commonRouteAlphabet), strategy);
+	}
+
+	/**
+	 * Iterates lazily over routes which are treated differently by the two
+	 * filters, like {@link #separatingRoute(Filter)}. All of them are found
+	 * by a single check, a route being given for each branch whose 
+	 * transformations may differ.
+	 */
+	public Iterator<ITerm<LabelPair>> separatingRoutes(
+			final Filter otherFilter) {
+		final RouteAlphabet commonRouteAlphabet = 
+			AlphabetCache.routeAlphabet(
+				this.filterAlphabet().union(otherFilter.filterAlphabet()));
+		return this.automaton(commonRouteAlphabet).separationRoutes(
+			otherFilter.automaton(commonRouteAlphabet));
+	}
+
+	/**
+	 * Returns a route which is treated differently by the two filters, like
+	 * {@link #separatingRoute(Filter)}, among the routes of a given alphabet.
+	 * Values of the alphabet that are not referenced by the filters are first
+	 * collapsed (see {@link AlphabetAbstraction}).
+	 */
+	public ITerm<LabelPair> separatingRoute(final Filter otherFilter,
+			final RouteAlphabet routeAlphabet) {
+		final RouteAlphabet alphabet = abstractAlphabet(otherFilter, 
+			routeAlphabet);
+		// the representatives are concrete values: so is the route
+		return this.automaton(alphabet).separationRoute(
+			otherFilter.automaton(alphabet));
+	}
+
+	private RouteAlphabet abstractAlphabet(final Filter otherFilter,
+			final RouteAlphabet routeAlphabet) {
+		return new AlphabetAbstraction(routeAlphabet, 
+			this.filterAlphabet().union(otherFilter.filterAlphabet()))
+			.abstractAlphabet();
+	}
+
 	/**
 	 * Computes the alphabet of this filter.
 	 */
@@ -0,0 +1,235 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+
+package be.ac.umons.info.routing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import be.ac.umons.info.routing.automata.AlphabetCache;
+import be.ac.umons.info.routing.automata.FilterAutomaton;
+import be.ac.umons.info.routing.automata.LabelPair;
+import be.ac.umons.info.routing.automata.RouteAlphabet;
+import traul.ranked.terms.ITerm;
+
+/**
+ * Splits a list of filters into classes of equivalent filters.
+ * <p>
+ * All automata are built on the union of the alphabets of the filters. The
+ * filters of a bucket are compared with a representative; the equivalent 
+ * ones form its class, and the others are split by their fingerprint: for 
+ * each pair of routes (t,t') separating the representative from one of 
+ * them, whether their automaton accepts (t,t'), ie maps t to t'. Equivalent 
+ * filters have the same fingerprint, so that only filters of a same bucket
+ * are compared. The buckets are refined in parallel, in a pool given by 
+ * the caller, who remains in charge of shutting it down.
+ */
+public class FilterClustering {
+
+	private final List<Filter> filters;
+	private final ForkJoinPool pool;
+	private final List<FilterAutomaton> automata;
+	private final List<List<Integer>> classes = new ArrayList<List<Integer>>();
+
+	/**
+	 * Constructor
+	 * @param filters the filters to be clustered
+	 * @param pool the pool running the constructions and the comparisons
+	 */
+	public FilterClustering(final List<Filter> filters, 
+			final ForkJoinPool pool) {
+		this.filters = filters;
+		this.pool = pool;
+		this.automata = new ArrayList<FilterAutomaton>(
+			Collections.<FilterAutomaton>nCopies(filters.size(), null));
+	}
+
+	/**
+	 * Returns the classes of equivalent filters. The filters of a class, 
+	 * and the classes by their first filter, are in the order of the list.
+	 */
+	public List<List<Filter>> equivalenceClasses() {
+		if (this.filters.isEmpty()) {
+			return new ArrayList<List<Filter>>();
+		}
+		RouteAlphabet union = this.filters.get(0).filterAlphabet();
+		for (Filter filter : this.filters) {
+			union = union.union(filter.filterAlphabet());
+		}
+		final RouteAlphabet alphabet = AlphabetCache.routeAlphabet(union);
+		final List<Integer> all = new ArrayList<Integer>();
+		for (int i=0; i<this.filters.size(); i++) {
+			all.add(i);
+		}
+		this.classes.clear();
+		this.pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				final List<Construction> constructions = 
+					new ArrayList<Construction>();
+				for (int i=0; i<filters.size(); i++) {
+					constructions.add(new Construction(alphabet, i));
+				}
+				invokeAll(constructions);
+				new Refinement(all).compute();
+			}
+		});
+		// in the order of the filters
+		Collections.sort(this.classes, new Comparator<List<Integer>>() {
+			@Override
+			public int compare(final List<Integer> c1, final List<Integer> c2) {
+				return c1.get(0).compareTo(c2.get(0));
+			}
+		});
+		final List<List<Filter>> equivalenceClasses = 
+			new ArrayList<List<Filter>>();
+		for (List<Integer> indexes : this.classes) {
+			final List<Filter> equivalenceClass = new ArrayList<Filter>();
+			for (int i : indexes) {
+				equivalenceClass.add(this.filters.get(i));
+			}
+			equivalenceClasses.add(equivalenceClass);
+		}
+		return equivalenceClasses;
+	}
+
+	/**
+	 * Task building the automaton of a filter.
+	 */
+	private final class Construction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RouteAlphabet alphabet;
+		private final int index;
+
+		Construction(final RouteAlphabet alphabet, final int index) {
+			this.alphabet = alphabet;
+			this.index = index;
+		}
+
+		@Override
+		protected void compute() {
+			automata.set(this.index, 
+				filters.get(this.index).automaton(this.alphabet));
+		}
+	}
+
+	/**
+	 * Task splitting a bucket of filters (given by their indexes, in 
+	 * increasing order) into classes of equivalent filters.
+	 */
+	private final class Refinement extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Integer> bucket;
+
+		Refinement(final List<Integer> bucket) {
+			this.bucket = bucket;
+		}
+
+		@Override
+		protected void compute() {
+			final int representative = this.bucket.get(0);
+			final List<Comparison> comparisons = new ArrayList<Comparison>();
+			for (int i=1; i<this.bucket.size(); i++) {
+				comparisons.add(
+					new Comparison(representative, this.bucket.get(i)));
+			}
+			invokeAll(comparisons);
+			final List<Integer> equivalenceClass = new ArrayList<Integer>();
+			equivalenceClass.add(representative);
+			final List<Integer> others = new ArrayList<Integer>();
+			final Map<String,ITerm<LabelPair>> samples = 
+				new LinkedHashMap<String,ITerm<LabelPair>>();
+			for (Comparison comparison : comparisons) {
+				if (comparison.route == null) {
+					equivalenceClass.add(comparison.index);
+				} else {
+					others.add(comparison.index);
+					samples.put(comparison.route.toString(), comparison.route);
+				}
+			}
+			synchronized (classes) {
+				classes.add(equivalenceClass);
+			}
+			if (others.isEmpty()) {
+				return;
+			}
+			// split the other filters by their fingerprints
+			final Map<BitSet,List<Integer>> buckets = 
+				new LinkedHashMap<BitSet,List<Integer>>();
+			for (int index : others) {
+				final BitSet fingerprint = new BitSet();
+				int i = 0;
+				for (ITerm<LabelPair> sample : samples.values()) {
+					if (automata.get(index).acceptsWithDiamonds(sample)) {
+						fingerprint.set(i);
+					}
+					i++;
+				}
+				List<Integer> bucket = buckets.get(fingerprint);
+				if (bucket == null) {
+					bucket = new ArrayList<Integer>();
+					buckets.put(fingerprint, bucket);
+				}
+				bucket.add(index);
+			}
+			final List<Refinement> refinements = new ArrayList<Refinement>();
+			for (List<Integer> bucket : buckets.values()) {
+				refinements.add(new Refinement(bucket));
+			}
+			invokeAll(refinements);
+		}
+	}
+
+	/**
+	 * Task comparing a filter with the representative of its bucket.
+	 */
+	private final class Comparison extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int representative;
+		private final int index;
+		private ITerm<LabelPair> route = null;
+
+		Comparison(final int representative, final int index) {
+			this.representative = representative;
+			this.index = index;
+		}
+
+		@Override
+		protected void compute() {
+			this.route = automata.get(this.representative).separationRoute(
+				automata.get(this.index));
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+
+package be.ac.umons.info.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import be.ac.umons.info.routing.automata.AlphabetCache;
+import be.ac.umons.info.routing.automata.FilterAutomaton;
+import be.ac.umons.info.routing.automata.LabelPair;
+import be.ac.umons.info.routing.automata.RouteAlphabet;
+import traul.ranked.terms.ITerm;
+
+/**
+ * Compares a reference filter with many candidate filters. The automaton of
+ * the reference is built once, on the union of the alphabets of all the 
+ * filters, and kept for the next batches as long as their alphabet is the 
+ * same. The candidates are then built and compared with the reference 
+ * concurrently. Their automata are only kept during the call: 
+ * {@link #compare(List)} gives both the verdicts and the separating routes
+ * of a batch from a single construction of each candidate.
+ * <p>
+ * The pool is given by the caller, who remains in charge of shutting it
+ * down.
+ */
+public class FilterEquivalenceBatch {
+
+	private final Filter reference;
+	private final ForkJoinPool pool;
+	private volatile Reference built = null;
+
+	/**
+	 * Automaton of the reference, with the alphabet it is built on.
+	 */
+	private static final class Reference {
+
+		private final RouteAlphabet alphabet;
+		private final FilterAutomaton automaton;
+
+		Reference(final RouteAlphabet alphabet, 
+				final FilterAutomaton automaton) {
+			this.alphabet = alphabet;
+			this.automaton = automaton;
+		}
+	}
+
+	/**
+	 * Verdicts and separating routes of the candidates of a batch, in the 
+	 * order of the candidates.
+	 */
+	public static final class Result {
+
+		private final boolean[] verdicts;
+		private final List<ITerm<LabelPair>> routes;
+
+		private Result(final boolean[] verdicts, 
+				final List<ITerm<LabelPair>> routes) {
+			this.verdicts = verdicts;
+			this.routes = Collections.unmodifiableList(routes);
+		}
+
+		/**
+		 * True iff the candidate is equivalent to the reference.
+		 */
+		public boolean equivalent(final int index) {
+			return this.verdicts[index];
+		}
+
+		/**
+		 * Returns a route treated differently by the reference and by the
+		 * candidate, or null when they are equivalent.
+		 */
+		public ITerm<LabelPair> separatingRoute(final int index) {
+			return this.routes.get(index);
+		}
+
+		/**
+		 * Returns the separating routes, in the order of the candidates.
+		 */
+		public List<ITerm<LabelPair>> separatingRoutes() {
+			return this.routes;
+		}
+
+		/**
+		 * Returns the number of candidates.
+		 */
+		public int size() {
+			return this.verdicts.length;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param reference the filter the candidates are compared with
+	 * @param pool the pool running the constructions and the comparisons
+	 */
+	public FilterEquivalenceBatch(final Filter reference, 
+			final ForkJoinPool pool) {
+		this.reference = reference;
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns the reference filter.
+	 */
+	public Filter getReference() {
+		return this.reference;
+	}
+
+	/**
+	 * Checks the equivalence of each candidate with the reference filter.
+	 * @param candidates the filters to be compared with the reference
+	 * @return the verdicts, in the order of the candidates
+	 */
+	public boolean[] equivalent(final List<Filter> candidates) {
+		final boolean[] verdicts = new boolean[candidates.size()];
+		compare(candidates, verdicts, null);
+		return verdicts;
+	}
+
+	/**
+	 * Returns, for each candidate, a route which is treated differently by
+	 * the reference filter and by the candidate, or null when they are 
+	 * equivalent (see Filter.separatingRoute(Filter)).
+	 * @param candidates the filters to be compared with the reference
+	 * @return the separating routes, in the order of the candidates
+	 */
+	public List<ITerm<LabelPair>> separatingRoutes(
+			final List<Filter> candidates) {
+		return compare(candidates).separatingRoutes();
+	}
+
+	/**
+	 * Compares each candidate with the reference filter, giving both the 
+	 * verdicts and the separating routes.
+	 * @param candidates the filters to be compared with the reference
+	 * @return the verdicts and the separating routes of the candidates
+	 */
+	public Result compare(final List<Filter> candidates) {
+		final boolean[] verdicts = new boolean[candidates.size()];
+		final List<ITerm<LabelPair>> routes = new ArrayList<ITerm<LabelPair>>(
+			Collections.<ITerm<LabelPair>>nCopies(candidates.size(), null));
+		compare(candidates, verdicts, routes);
+		return new Result(verdicts, routes);
+	}
+
+	/**
+	 * Compares the candidates with the reference, each task setting its own
+	 * verdict, and its own separating route if routes is not null.
+	 */
+	private void compare(final List<Filter> candidates, 
+			final boolean[] verdicts, final List<ITerm<LabelPair>> routes) {
+		final Reference reference = reference(candidates);
+		final List<Comparison> comparisons = new ArrayList<Comparison>();
+		for (int i=0; i<candidates.size(); i++) {
+			comparisons.add(new Comparison(reference.automaton, 
+				reference.alphabet, candidates.get(i), verdicts, routes, i));
+		}
+		if (ForkJoinTask.getPool() == this.pool) {
+			ForkJoinTask.invokeAll(comparisons);
+		} else {
+			this.pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(comparisons);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the automaton of the reference, on an alphabet containing the
+	 * alphabets of the reference and of the candidates. It is only built 
+	 * again when the candidates need a larger alphabet. The construction 
+	 * runs without holding any lock, and its result is then published for 
+	 * the next batches.
+	 */
+	private Reference reference(final List<Filter> candidates) {
+		final Reference known = this.built;
+		RouteAlphabet union = known == null ? 
+			this.reference.filterAlphabet() : known.alphabet;
+		for (Filter candidate : candidates) {
+			union = union.union(candidate.filterAlphabet());
+		}
+		if (known != null && union.equals(known.alphabet)) {
+			return known;
+		}
+		final RouteAlphabet alphabet = AlphabetCache.routeAlphabet(union);
+		final Reference reference = new Reference(alphabet, 
+			this.reference.automaton(alphabet, this.pool));
+		this.built = reference;
+		return reference;
+	}
+
+	/**
+	 * Task building the automaton of a candidate and comparing it with the
+	 * reference.
+	 */
+	private static final class Comparison extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FilterAutomaton referenceAutomaton;
+		private final RouteAlphabet alphabet;
+		private final Filter candidate;
+		private final boolean[] verdicts;
+		private final List<ITerm<LabelPair>> routes;
+		private final int index;
+
+		Comparison(final FilterAutomaton referenceAutomaton, 
+				final RouteAlphabet alphabet, final Filter candidate, 
+				final boolean[] verdicts, 
+				final List<ITerm<LabelPair>> routes, final int index) {
+			this.referenceAutomaton = referenceAutomaton;
+			this.alphabet = alphabet;
+			this.candidate = candidate;
+			this.verdicts = verdicts;
+			this.routes = routes;
+			this.index = index;
+		}
+
+		@Override
+		protected void compute() {
+			final FilterAutomaton candidateAutomaton = 
+				this.candidate.automaton(this.alphabet);
+			if (this.routes == null) {
+				this.verdicts[this.index] = 
+					this.referenceAutomaton.equivalent(candidateAutomaton);
+				return;
+			}
+			final ITerm<LabelPair> route = 
+				this.referenceAutomaton.separationRoute(candidateAutomaton);
+			this.verdicts[this.index] = route == null;
+			this.routes.set(this.index, route);
+		}
+	}
+}
@@ -36,6 +36,8 @@ import be.ac.umons.info.routing.actions.atomic.PrefSet;
 import be.ac.umons.info.routing.actions.atomic.PrefSub;
 import be.ac.umons.info.routing.actions.atomic.Reject;
 import be.ac.umons.info.routing.automata.ActionAlphabet;
+import be.ac.umons.info.routing.automata.AlphabetCache;
+import be.ac.umons.info.routing.automata.CompositionPlanner;
 import be.ac.umons.info.routing.automata.FilterAutomaton;
 import be.ac.umons.info.routing.automata.FilterState;
 import be.ac.umons.info.routing.automata.IntegerLabel;
@@ -112,13 +114,23 @@ public class FilterRule implements IFilterRule {
 	 * them in the right way.
 	 */
 	public FilterAutomaton automaton(final RouteAlphabet filterRouteAlphabet) {
+		return automaton(filterRouteAlphabet, null);
+	}
+
+	/**
+	 * Builds the automaton recognizing this rule's language, where the 
+	 * automata of the actions are composed in the order chosen by the given
+	 * planner (or one after another if planner is null).
+	 */
+	public FilterAutomaton automaton(final RouteAlphabet filterRouteAlphabet,
+			final CompositionPlanner planner) {
 		
 		final FilterAutomaton actionAutomaton = 
 				convertToFilterAlphabet(
 					transformActionAutomaton(
-						this.actionAutomaton(filterRouteAlphabet), 
+						this.actionAutomaton(filterRouteAlphabet, planner), 
 						filterRouteAlphabet), 
-					new ActionAlphabet(filterRouteAlphabet));
+					AlphabetCache.actionAlphabet(filterRouteAlphabet));
 			
 		FilterAutomaton result = actionAutomaton;
 
@@ -135,13 +147,21 @@ public class FilterRule implements IFilterRule {
 	 * Returns the automaton for the action of this rule.
 	 */
 	private FilterAutomaton actionAutomaton(
-			final RouteAlphabet filterRouteAlphabet) {
+			final RouteAlphabet filterRouteAlphabet,
+			final CompositionPlanner planner) {
 		// compute the alphabet: filter alphabet + internal alphabet
 		final RouteAlphabet internalAlphabet = 
 			internalAlphabet(filterRouteAlphabet);
 		final ActionAlphabet actionAlphabet = 
-			new ActionAlphabet(internalAlphabet);
+			AlphabetCache.actionAlphabet(internalAlphabet);
 		// compute the automaton
+		if (planner != null) {
+			List<FilterAutomaton> automata = new ArrayList<FilterAutomaton>();
+			for (IAction action : actions) {
+				automata.add(action.automaton(internalAlphabet, actionAlphabet));
+			}
+			return planner.compose(automata).cleanInaccessibleStates();
+		}
 		FilterAutomaton actionAutomaton = 
 			actions.get(0).automaton(internalAlphabet, actionAlphabet);
 		for (int i=1; i<actions.size(); i++) {
@@ -250,7 +270,7 @@ public class FilterRule implements IFilterRule {
 			final RouteAlphabet routeAlphabet){
 		
 		final ActionAlphabet actionAlphabet = 
-			new ActionAlphabet(routeAlphabet);
+			AlphabetCache.actionAlphabet(routeAlphabet);
 		final PredicateAutomaton predicateAutomaton = 
 			this.predicate.automaton(routeAlphabet);
 		// states
@@ -278,7 +298,7 @@ public class FilterRule implements IFilterRule {
 				rootRules.add(new BasicRule<LabelPair,FilterState>(
 					convertToFilterStates(rule.leftStates()),
 					new LabelPair(rule.label(), RouteAlphabet.R_BAR),
-					new FilterState(finalState)));
+					finalState));
 			}
 		}
 		return new FilterAutomaton(actionAlphabet, newStates, finalStates, 
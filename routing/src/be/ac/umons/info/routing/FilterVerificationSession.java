@@ -0,0 +1,205 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+
+package be.ac.umons.info.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import be.ac.umons.info.routing.automata.AlphabetCache;
+import be.ac.umons.info.routing.automata.FilterAutomaton;
+import be.ac.umons.info.routing.automata.LabelPair;
+import be.ac.umons.info.routing.automata.RouteAlphabet;
+import traul.ranked.terms.ITerm;
+
+/**
+ * Verification of a filter against a reference filter, while the rules of
+ * the filter are edited one at a time.
+ * <p>
+ * The automata of the rules are kept, with the compositions of the rules 
+ * before and after each rule (prefixes and suffixes of the chain of rules).
+ * When rule i is replaced, only the prefixes from i and the suffixes up to
+ * i are dropped, and the automaton of the filter is obtained as 
+ * suffix(i+1) o rule(i) o prefix(i-1). The automaton of the reference is 
+ * built once. When the filter differed from the reference, the previous 
+ * separating route is checked first: if the filter still transforms it 
+ * differently, no new search is needed.
+ * <p>
+ * Everything is built on the union of the alphabets of both filters, and 
+ * built again when a new rule needs a larger alphabet.
+ */
+public class FilterVerificationSession {
+
+	private final Filter reference;
+	private final List<IFilterRule> rules;
+	private final int initialLocalPref;
+	private RouteAlphabet alphabet;
+	private FilterAutomaton referenceAutomaton;
+	// automata of the rules, and compositions of the rules [0..i] and 
+	// [i..n-1], null when they have to be built
+	private FilterAutomaton[] ruleAutomata;
+	private FilterAutomaton[] prefixes;
+	private FilterAutomaton[] suffixes;
+	private FilterAutomaton automaton = null;
+	// last verification: the automaton checked, and the separating route
+	private FilterAutomaton checkedAutomaton = null;
+	private ITerm<LabelPair> route = null;
+
+	/**
+	 * Constructor
+	 * @param filter the filter to be edited, with at least one rule
+	 * @param reference the filter it is compared with
+	 */
+	public FilterVerificationSession(final Filter filter, 
+			final Filter reference) {
+		if (filter.getRules().isEmpty()) {
+			throw new IllegalArgumentException(
+				"The filter should have at least one rule.");
+		}
+		this.reference = reference;
+		this.rules = new ArrayList<IFilterRule>(filter.getRules());
+		this.initialLocalPref = filter.getInitialLocalPref();
+		build(AlphabetCache.routeAlphabet(
+			filter.filterAlphabet().union(reference.filterAlphabet())));
+	}
+
+	/**
+	 * Returns the filter, with its current rules.
+	 */
+	public Filter getFilter() {
+		return new Filter(new ArrayList<IFilterRule>(this.rules), 
+			this.initialLocalPref);
+	}
+
+	/**
+	 * Returns the reference filter.
+	 */
+	public Filter getReference() {
+		return this.reference;
+	}
+
+	/**
+	 * Replaces a rule of the filter.
+	 * @param index the index of the rule
+	 * @param rule the new rule
+	 */
+	public void replaceRule(final int index, final IFilterRule rule) {
+		this.rules.set(index, rule);
+		final RouteAlphabet alphabet = AlphabetCache.routeAlphabet(
+			getFilter().filterAlphabet().union(this.alphabet));
+		if (!alphabet.equals(this.alphabet)) {
+			build(alphabet);
+			return;
+		}
+		this.ruleAutomata[index] = rule.automaton(this.alphabet);
+		for (int i=index; i<this.prefixes.length; i++) {
+			this.prefixes[i] = null;
+		}
+		for (int i=0; i<=index; i++) {
+			this.suffixes[i] = null;
+		}
+		FilterAutomaton composed = this.ruleAutomata[index];
+		if (index > 0) {
+			composed = composed.composeReachable(prefix(index-1));
+		}
+		if (index < this.rules.size()-1) {
+			composed = suffix(index+1).composeReachable(composed);
+		}
+		this.automaton = composed.automatonForValidRoutes(this.alphabet);
+	}
+
+	/**
+	 * Returns the automaton of the filter, with its current rules.
+	 */
+	public FilterAutomaton automaton() {
+		if (this.automaton == null) {
+			this.automaton = suffix(0).automatonForValidRoutes(this.alphabet);
+		}
+		return this.automaton;
+	}
+
+	/**
+	 * Returns true iff the filter, with its current rules, is equivalent to
+	 * the reference.
+	 */
+	public boolean equivalent() {
+		return separatingRoute() == null;
+	}
+
+	/**
+	 * Returns a route which is treated differently by the filter and by the
+	 * reference, given with its transformation by the reference, or null 
+	 * when they are equivalent.
+	 */
+	public ITerm<LabelPair> separatingRoute() {
+		final FilterAutomaton automaton = automaton();
+		if (automaton == this.checkedAutomaton) {
+			return this.route;
+		}
+		// the filter still maps the previous route to another image
+		if (this.route == null || 
+				automaton.acceptsWithDiamonds(this.route)) {
+			this.route = this.referenceAutomaton.separationRoute(automaton);
+		}
+		this.checkedAutomaton = automaton;
+		return this.route;
+	}
+
+	/**
+	 * Builds all automata on a new alphabet.
+	 */
+	private void build(final RouteAlphabet alphabet) {
+		this.alphabet = alphabet;
+		this.referenceAutomaton = this.reference.automaton(alphabet);
+		final int n = this.rules.size();
+		this.ruleAutomata = new FilterAutomaton[n];
+		this.prefixes = new FilterAutomaton[n];
+		this.suffixes = new FilterAutomaton[n];
+		for (int i=0; i<n; i++) {
+			this.ruleAutomata[i] = this.rules.get(i).automaton(alphabet);
+		}
+		this.automaton = null;
+		this.checkedAutomaton = null;
+		this.route = null;
+	}
+
+	/**
+	 * Composition of the rules [0..i].
+	 */
+	private FilterAutomaton prefix(final int i) {
+		if (this.prefixes[i] == null) {
+			this.prefixes[i] = i == 0 ? this.ruleAutomata[0] : 
+				this.ruleAutomata[i].composeReachable(prefix(i-1));
+		}
+		return this.prefixes[i];
+	}
+
+	/**
+	 * Composition of the rules [i..n-1].
+	 */
+	private FilterAutomaton suffix(final int i) {
+		if (this.suffixes[i] == null) {
+			this.suffixes[i] = i == this.suffixes.length-1 ? 
+				this.ruleAutomata[i] : 
+				suffix(i+1).composeReachable(this.ruleAutomata[i]);
+		}
+		return this.suffixes[i];
+	}
+}
@@ -22,6 +22,7 @@ package be.ac.umons.info.routing;
 import java.util.List;
 
 import be.ac.umons.info.routing.actions.IAction;
+import be.ac.umons.info.routing.automata.CompositionPlanner;
 import be.ac.umons.info.routing.automata.FilterAutomaton;
 import be.ac.umons.info.routing.automata.RouteAlphabet;
 import be.ac.umons.info.routing.predicates.IPredicate;
@@ -48,6 +49,14 @@ public interface IFilterRule {
 	 */
 	public FilterAutomaton automaton(RouteAlphabet filterRouteAlphabet);
 
+	/**
+	 * Builds the automaton recognizing this rule's language, like 
+	 * automaton(filterRouteAlphabet), where automata for sequences of 
+	 * actions are composed in the order chosen by the given planner.
+	 */
+	public FilterAutomaton automaton(RouteAlphabet filterRouteAlphabet,
+			CompositionPlanner planner);
+
 	/**
 	 * Returns the set of labels used in the filter.
 	 * @param previousAlphabet the alphabet for previous rules of this filter
@@ -27,6 +27,8 @@ import traul.ranked.nta.rules.BasicRule;
 import traul.ranked.nta.rules.IRule;
 import be.ac.umons.info.routing.actions.IAction;
 import be.ac.umons.info.routing.automata.ActionAlphabet;
+import be.ac.umons.info.routing.automata.AlphabetCache;
+import be.ac.umons.info.routing.automata.CompositionPlanner;
 import be.ac.umons.info.routing.automata.FilterAutomaton;
 import be.ac.umons.info.routing.automata.FilterState;
 import be.ac.umons.info.routing.automata.LabelPair;
@@ -59,6 +61,15 @@ public class ModFilterRule implements IFilterRule {
 		return null;
 	}
 
+	/**
+	 * This rule has no sequence of actions: same as automaton(routeAlphabet).
+	 */
+	@Override
+	public FilterAutomaton automaton(final RouteAlphabet routeAlphabet,
+			final CompositionPlanner planner) {
+		return automaton(routeAlphabet);
+	}
+
 	@Override
 	public FilterAutomaton automaton(final RouteAlphabet routeAlphabet) {
 		
@@ -104,7 +115,7 @@ public class ModFilterRule implements IFilterRule {
 		
 		// automaton
 		final ActionAlphabet actionAlphabet = 
-				new ActionAlphabet(routeAlphabet, true);
+				AlphabetCache.actionAlphabet(routeAlphabet, true);
 		return new FilterAutomaton(
 			actionAlphabet, states, finalStates, sink,
 			rulesDest, rulesPath, rulesPref, rulesCom, rulesMod, rulesRoot);
@@ -19,19 +19,36 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 
 package be.ac.umons.info.routing.automata;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import traul.ranked.nta.labels.Alphabet;
+import traul.ranked.nta.labels.ILabel;
 
 /**
  * Alphabet of actions, made of pairs (a,b) of simple labels.
+ * The labels (i,j) where i and j are integers are not stored: there is a
+ * quadratic number of them, so they are answered on demand from the
+ * RouteAlphabet. Label (i,j) belongs to the alphabet if i=j is in the DEST
+ * alphabet, or if i and j both belong to the AS-path, the pref or the
+ * community alphabet.
  */
 public class ActionAlphabet extends Alphabet<LabelPair>{
 	
 	private final RouteAlphabet routeAlphabet;
+	private final List<Set<IntegerLabel>> integerPairAlphabets;
+	private volatile PackedLabels packedLabels = null;
+	private Map<LabelPair,Integer> symbols = null;
+	private Set<LabelPair> unarySymbols = null;
 
 	public static final LabelPair DESTDEST = 
 		new LabelPair(RouteAlphabet.DEST, RouteAlphabet.DEST);
@@ -84,8 +101,7 @@ public class ActionAlphabet extends Alphabet<LabelPair>{
 	 * Constructor parameterized by a RouteAlphabet.
 	 */
 	public ActionAlphabet(final RouteAlphabet routeAlphabet) {
-		super(ActionAlphabet.actionSymbols(routeAlphabet, false));
-		this.routeAlphabet = routeAlphabet;
+		this(routeAlphabet, false);
 	}
 	
 	/**
@@ -95,6 +111,11 @@ public class ActionAlphabet extends Alphabet<LabelPair>{
 		final boolean withAccMod) {
 		super(ActionAlphabet.actionSymbols(routeAlphabet, withAccMod));
 		this.routeAlphabet = routeAlphabet;
+		this.integerPairAlphabets = new ArrayList<Set<IntegerLabel>>();
+		this.integerPairAlphabets.add(routeAlphabet.destAlphabet());
+		this.integerPairAlphabets.add(routeAlphabet.asPathAlphabet());
+		this.integerPairAlphabets.add(routeAlphabet.prefAlphabet());
+		this.integerPairAlphabets.add(routeAlphabet.comAlphabet());
 	}
 	
 	/**
@@ -104,6 +125,9 @@ public class ActionAlphabet extends Alphabet<LabelPair>{
 		return this.routeAlphabet;
 	}
 	
+	/**
+	 * All symbols, except pairs of integers.
+	 */
 	private static Map<LabelPair,Integer> actionSymbols(
 		final RouteAlphabet routeAlphabet,
 		final boolean withAccMod) {
@@ -116,10 +140,6 @@ public class ActionAlphabet extends Alphabet<LabelPair>{
 
 		// dest branch
 		actionSymbols.put(DESTDEST, 0);
-		for (IntegerLabel label : routeAlphabet.destAlphabet()) {
-			final int i = ((IntegerLabel)label).intValue();
-			actionSymbols.put(integerinteger(i, i), 1);
-		}
 		// path branch
 		actionSymbols.put(PATHPATH, 0);
 		actionSymbols.put(PATHPATH1, 1);
@@ -128,19 +148,9 @@ public class ActionAlphabet extends Alphabet<LabelPair>{
 		for (int i : routeAlphabet.asPathAlphabetInt()) {
 			actionSymbols.put(pathinteger(i), 1);
 			actionSymbols.put(diamondinteger(i), 1);
-			for (int j : routeAlphabet.asPathAlphabetInt()) {
-				actionSymbols.put(integerinteger(i,j), 1);
-			}
 		}
 		// pref branch
 		actionSymbols.put(PREFPREF, 0);
-		for (IntegerLabel label : routeAlphabet.prefAlphabet()) {
-			final int i = ((IntegerLabel)label).intValue();
-			for (IntegerLabel labelj : routeAlphabet.prefAlphabet()) {
-				final int j = ((IntegerLabel)labelj).intValue();
-				actionSymbols.put(integerinteger(i, j), 1);
-			}
-		}
 		// com branch
 		actionSymbols.put(COMCOM, 0);
 		actionSymbols.put(COMCOM1, 1);
@@ -149,15 +159,11 @@ public class ActionAlphabet extends Alphabet<LabelPair>{
 		actionSymbols.put(DIAMONDCOM, 0);
 		actionSymbols.put(DIAMONDCOM1, 1);		
 		for (IntegerLabel label : routeAlphabet.comAlphabet()) {
-			final int i = ((IntegerLabel)label).intValue();
+			final int i = label.intValue();
 			actionSymbols.put(cominteger(i), 1);
 			actionSymbols.put(integercom(i), 1);
 			actionSymbols.put(diamondinteger(i), 1);
 			actionSymbols.put(integerdiamond(i), 1);
-			for (IntegerLabel labelj : routeAlphabet.comAlphabet()) {
-				final int j = ((IntegerLabel)labelj).intValue();
-				actionSymbols.put(integerinteger(i, j), 1);
-			}
 		}
 		// mod branch
 		actionSymbols.put(MODMOD, 0);
@@ -176,20 +182,373 @@ public class ActionAlphabet extends Alphabet<LabelPair>{
 		return actionSymbols;
 	}
 	
+	/**
+	 * Returns all symbols of this alphabet, with their arity. Pairs of
+	 * integers are not stored: the returned map is a view, where looking for
+	 * a label takes constant time, while iterating over it takes a time
+	 * quadratic in the size of the route alphabet.
+	 */
+	@Override
+	public synchronized Map<LabelPair,Integer> getSymbols() {
+		if (this.symbols == null) {
+			this.symbols = new Symbols();
+		}
+		return this.symbols;
+	}
+
+	/**
+	 * Returns the symbols of a given arity. For arity 1, the returned set is
+	 * a view (see {@link #getSymbols()}).
+	 */
+	@Override
+	public Set<LabelPair> getSymbolsOfArity(final Integer arity) {
+		if (arity != null && arity == 1) {
+			synchronized (this) {
+				if (this.unarySymbols == null) {
+					this.unarySymbols = new UnarySymbols();
+				}
+				return this.unarySymbols;
+			}
+		}
+		return super.getSymbolsOfArity(arity);
+	}
+
+	/**
+	 * Returns the arity of a label.
+	 * @throws IllegalStateException if the label is not in this alphabet
+	 */
+	@Override
+	public Integer arity(final LabelPair label) {
+		if (isIntegerPair(label)) {
+			return 1;
+		}
+		return super.arity(label);
+	}
+
+	@Override
+	public Iterator<LabelPair> iterator() {
+		return getSymbols().keySet().iterator();
+	}
+
+	@Override
+	public int hashCode() {
+		return 31*super.hashCode()+this.integerPairAlphabets.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!super.equals(obj) || !(obj instanceof ActionAlphabet)) {
+			return false;
+		}
+		return this.integerPairAlphabets.equals(
+			((ActionAlphabet)obj).integerPairAlphabets);
+	}
+
+	/**
+	 * Returns the codec used to encode the labels of this alphabet into
+	 * primitive values.
+	 */
+	public LabelCodec labelCodec() {
+		return packedLabels().codec;
+	}
+
+	/**
+	 * Returns the arity of a label encoded by {@link #labelCodec()}, or -1 if
+	 * the label is not in this alphabet.
+	 */
+	public int arity(final long packedLabel) {
+		final PackedLabels packed = packedLabels();
+		final int arity = packed.arities.get(packedLabel, -1);
+		if (arity < 0 && !LabelCodec.isUnary(packedLabel)) {
+			final int left = LabelCodec.left(packedLabel);
+			final int right = LabelCodec.right(packedLabel);
+			if (LabelCodec.isInteger(left) && LabelCodec.isInteger(right) &&
+					packed.isIntegerPair(
+						LabelCodec.index(left), LabelCodec.index(right))) {
+				return 1;
+			}
+		}
+		return arity;
+	}
+
 	/**
 	 * Returns all labels of a given arity
 	 */
 	public Set<LabelPair> getLabelsOfArity(final int arity) {
-		Set<LabelPair> setLabel = new HashSet<LabelPair>();
-		Set<LabelPair> symbols = getSymbols().keySet();
-		for (LabelPair symbol : symbols) {
-			if (arity(symbol)==arity) {
-				setLabel.add(symbol);
+		return getSymbolsOfArity(arity);
+	}
+
+	/**
+	 * Returns true iff the label is a pair of integers of this alphabet.
+	 */
+	private boolean isIntegerPair(final Object label) {
+		if (label == null || label.getClass() != LabelPair.class) {
+			return false;
+		}
+		final ILabel left = ((LabelPair)label).left();
+		final ILabel right = ((LabelPair)label).right();
+		if (!(left instanceof IntegerLabel) ||
+				!(right instanceof IntegerLabel)) {
+			return false;
+		}
+		return isIntegerPair(0, (IntegerLabel)left, (IntegerLabel)right,
+			this.integerPairAlphabets.size());
+	}
+
+	/**
+	 * Returns true iff (i,j) is a pair of integers of one of the alphabets
+	 * from first (included) to last (excluded), in the order DEST, AS-path,
+	 * PREF, COM.
+	 */
+	private boolean isIntegerPair(final int first, final IntegerLabel i,
+			final IntegerLabel j, final int last) {
+		for (int branch=first; branch<last; branch++) {
+			final Set<IntegerLabel> values =
+				this.integerPairAlphabets.get(branch);
+			if (values.contains(i) && values.contains(j) &&
+					(branch!=0 || i.equals(j))) {
+				return true;
 			}
 		}
-		return setLabel;
+		return false;
 	}
-	
+
+	private PackedLabels packedLabels() {
+		PackedLabels packed = this.packedLabels;
+		if (packed == null) {
+			synchronized (this) {
+				packed = this.packedLabels;
+				if (packed == null) {
+					packed = new PackedLabels();
+					this.packedLabels = packed;
+				}
+			}
+		}
+		return packed;
+	}
+
+	/**
+	 * Codec of this alphabet, with the primitive tables used to answer the
+	 * arity of encoded labels.
+	 */
+	private final class PackedLabels {
+
+		final LabelCodec codec;
+		final LongIntHashMap arities;
+		final BitSet[] integerPairIndexes;
+
+		PackedLabels() {
+			this.codec = new LabelCodec(routeAlphabet);
+			final Map<LabelPair,Integer> explicitSymbols =
+				ActionAlphabet.super.getSymbols();
+			this.arities = new LongIntHashMap(explicitSymbols.size());
+			for (Map.Entry<LabelPair,Integer> symbol :
+				explicitSymbols.entrySet()) {
+				this.arities.put(this.codec.encode(symbol.getKey()),
+					symbol.getValue(), -1);
+			}
+			this.integerPairIndexes = new BitSet[integerPairAlphabets.size()];
+			for (int branch=0;branch<integerPairIndexes.length;branch++) {
+				this.integerPairIndexes[branch] = new BitSet();
+				for (IntegerLabel value : integerPairAlphabets.get(branch)) {
+					this.integerPairIndexes[branch].set(
+						LabelCodec.index(this.codec.encode(value)));
+				}
+			}
+		}
+
+		boolean isIntegerPair(final int i, final int j) {
+			for (int branch=0;branch<integerPairIndexes.length;branch++) {
+				if (this.integerPairIndexes[branch].get(i) &&
+						this.integerPairIndexes[branch].get(j) &&
+						(branch!=0 || i==j)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * View of all symbols: the stored ones, plus pairs of integers.
+	 */
+	private final class Symbols extends AbstractMap<LabelPair,Integer> {
+
+		private final Map<LabelPair,Integer> explicitSymbols =
+			ActionAlphabet.super.getSymbols();
+		private int size = -1;
+
+		@Override
+		public boolean containsKey(final Object label) {
+			return this.explicitSymbols.containsKey(label) ||
+				isIntegerPair(label);
+		}
+
+		@Override
+		public Integer get(final Object label) {
+			if (isIntegerPair(label)) {
+				return 1;
+			}
+			return this.explicitSymbols.get(label);
+		}
+
+		@Override
+		public synchronized int size() {
+			if (this.size < 0) {
+				int n = this.explicitSymbols.size();
+				final Iterator<LabelPair> it = new IntegerPairIterator();
+				while (it.hasNext()) {
+					it.next();
+					n++;
+				}
+				this.size = n;
+			}
+			return this.size;
+		}
+
+		@Override
+		public Set<Map.Entry<LabelPair,Integer>> entrySet() {
+			return new AbstractSet<Map.Entry<LabelPair,Integer>>() {
+				@Override
+				public Iterator<Map.Entry<LabelPair,Integer>> iterator() {
+					final Iterator<Map.Entry<LabelPair,Integer>> explicit =
+						explicitSymbols.entrySet().iterator();
+					final Iterator<LabelPair> pairs =
+						new IntegerPairIterator();
+					return new Iterator<Map.Entry<LabelPair,Integer>>() {
+						@Override
+						public boolean hasNext() {
+							return explicit.hasNext() || pairs.hasNext();
+						}
+						@Override
+						public Map.Entry<LabelPair,Integer> next() {
+							if (explicit.hasNext()) {
+								return explicit.next();
+							}
+							return new AbstractMap.SimpleImmutableEntry
+								<LabelPair,Integer>(pairs.next(), 1);
+						}
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+				@Override
+				public int size() {
+					return Symbols.this.size();
+				}
+			};
+		}
+	}
+
+	/**
+	 * View of the symbols of arity 1.
+	 */
+	private final class UnarySymbols extends AbstractSet<LabelPair> {
+
+		private final Set<LabelPair> explicitSymbols =
+			ActionAlphabet.super.getSymbolsOfArity(1);
+
+		@Override
+		public boolean contains(final Object label) {
+			return this.explicitSymbols.contains(label) ||
+				isIntegerPair(label);
+		}
+
+		@Override
+		public Iterator<LabelPair> iterator() {
+			final Iterator<LabelPair> explicit =
+				this.explicitSymbols.iterator();
+			final Iterator<LabelPair> pairs = new IntegerPairIterator();
+			return new Iterator<LabelPair>() {
+				@Override
+				public boolean hasNext() {
+					return explicit.hasNext() || pairs.hasNext();
+				}
+				@Override
+				public LabelPair next() {
+					if (explicit.hasNext()) {
+						return explicit.next();
+					}
+					return pairs.next();
+				}
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return getSymbols().size()-ActionAlphabet.super.getSymbols().size()
+				+this.explicitSymbols.size();
+		}
+	}
+
+	/**
+	 * Iterates over the pairs of integers of this alphabet, each pair once.
+	 */
+	private final class IntegerPairIterator implements Iterator<LabelPair> {
+
+		private int branch = -1;
+		private Iterator<IntegerLabel> outer = null;
+		private Iterator<IntegerLabel> inner = null;
+		private IntegerLabel i = null;
+		private LabelPair next = null;
+
+		IntegerPairIterator() {
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.next != null;
+		}
+
+		@Override
+		public LabelPair next() {
+			if (this.next == null) {
+				throw new NoSuchElementException();
+			}
+			final LabelPair current = this.next;
+			advance();
+			return current;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void advance() {
+			this.next = null;
+			while (this.next == null) {
+				if (this.inner != null && this.inner.hasNext()) {
+					final IntegerLabel j = this.inner.next();
+					// DEST only has pairs (i,i), and pairs of previous
+					// branches have already been returned
+					if ((this.branch!=0 || this.i.equals(j)) &&
+							!isIntegerPair(0, this.i, j, this.branch)) {
+						this.next = new LabelPair(this.i, j);
+					}
+				} else if (this.outer != null && this.outer.hasNext()) {
+					this.i = this.outer.next();
+					this.inner =
+						integerPairAlphabets.get(this.branch).iterator();
+				} else if (this.branch+1 < integerPairAlphabets.size()) {
+					this.branch++;
+					this.outer =
+						integerPairAlphabets.get(this.branch).iterator();
+					this.inner = null;
+				} else {
+					return;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Returns label (COM,i)
 	 */
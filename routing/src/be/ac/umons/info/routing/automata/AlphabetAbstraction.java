@@ -0,0 +1,138 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Abstraction of a route alphabet, with respect to the values referenced by
+ * some filters. In the DEST, AS-path and COM branches, the values that no
+ * predicate or action refers to are all handled in the same way by the
+ * filters: they are replaced by a single representative, which is one of
+ * these values. PREF values are kept, since actions compute on them.
+ * <p>
+ * Renaming every collapsed value into the representative maps a pair of
+ * routes accepted by a filter automaton to an accepted pair, so that two
+ * filters are equivalent on the concrete alphabet iff they are equivalent on
+ * the abstract one. As the representative is a concrete value, a separating
+ * route computed on the abstract alphabet is also a separating route on the
+ * concrete alphabet.
+ */
+public class AlphabetAbstraction {
+
+	private final RouteAlphabet concreteAlphabet;
+	private final RouteAlphabet abstractAlphabet;
+	private final Collapse dest, asPath, com;
+
+	/**
+	 * Values of a branch replaced by a representative.
+	 */
+	public static final class Collapse {
+
+		private final IntegerLabel representative;
+		private final Set<IntegerLabel> values;
+
+		private Collapse(final Set<IntegerLabel> concreteValues,
+				final Set<IntegerLabel> referencedValues) {
+			Set<IntegerLabel> collapsed = new HashSet<IntegerLabel>();
+			IntegerLabel smallest = null;
+			for (IntegerLabel value : concreteValues) {
+				if (!referencedValues.contains(value)) {
+					collapsed.add(value);
+					if (smallest == null ||
+							value.intValue() < smallest.intValue()) {
+						smallest = value;
+					}
+				}
+			}
+			this.representative = smallest;
+			this.values = Collections.unmodifiableSet(collapsed);
+		}
+
+		/**
+		 * Returns the value replacing the collapsed values, or null if no
+		 * value is collapsed in this branch.
+		 */
+		public IntegerLabel representative() {
+			return this.representative;
+		}
+
+		/**
+		 * Returns the values represented by the representative (including
+		 * itself).
+		 */
+		public Set<IntegerLabel> values() {
+			return this.values;
+		}
+
+		private Set<IntegerLabel> abstractValues(
+				final Set<IntegerLabel> concreteValues) {
+			Set<IntegerLabel> abstractValues =
+				new HashSet<IntegerLabel>(concreteValues);
+			abstractValues.removeAll(this.values);
+			if (this.representative != null) {
+				abstractValues.add(this.representative);
+			}
+			return abstractValues;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * @param concreteAlphabet the alphabet on which filters are compared
+	 * @param referencedAlphabet the values referenced by the filters, as
+	 *   given by Filter.filterAlphabet()
+	 */
+	public AlphabetAbstraction(final RouteAlphabet concreteAlphabet,
+			final RouteAlphabet referencedAlphabet) {
+		this.concreteAlphabet = concreteAlphabet.union(referencedAlphabet);
+		this.dest = new Collapse(this.concreteAlphabet.destAlphabet(),
+			referencedAlphabet.destAlphabet());
+		this.asPath = new Collapse(this.concreteAlphabet.asPathAlphabet(),
+			referencedAlphabet.asPathAlphabet());
+		this.com = new Collapse(this.concreteAlphabet.comAlphabet(),
+			referencedAlphabet.comAlphabet());
+		this.abstractAlphabet = AlphabetCache.routeAlphabet(
+			this.dest.abstractValues(this.concreteAlphabet.destAlphabet()),
+			this.asPath.abstractValues(this.concreteAlphabet.asPathAlphabet()),
+			this.concreteAlphabet.prefAlphabet(),
+			this.com.abstractValues(this.concreteAlphabet.comAlphabet()));
+	}
+
+	/**
+	 * Returns the concrete alphabet (including the referenced values).
+	 */
+	public RouteAlphabet concreteAlphabet() {
+		return this.concreteAlphabet;
+	}
+
+	/**
+	 * Returns the abstract alphabet, on which filters should be compared.
+	 */
+	public RouteAlphabet abstractAlphabet() {
+		return this.abstractAlphabet;
+	}
+
+	public Collapse dest()   { return this.dest; }
+	public Collapse asPath() { return this.asPath; }
+	public Collapse com()    { return this.com; }
+}
@@ -0,0 +1,186 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of alphabets, keyed by the content of their DEST, AS-path, PREF and
+ * COM alphabets. Equal alphabets are built once and then shared: the
+ * returned RouteAlphabet instances hold unmodifiable sets, and the returned
+ * ActionAlphabet instances have their label codec and arity tables already
+ * computed. Each cache keeps the {@link #CAPACITY} alphabets most recently
+ * used, so that a long-running process comparing many unrelated filters 
+ * does not keep all their alphabets alive. This class is thread-safe.
+ */
+public final class AlphabetCache {
+
+	/**
+	 * Maximal number of alphabets kept by each cache.
+	 */
+	public static final int CAPACITY = 256;
+
+	private static final LeastRecentlyUsed<RouteAlphabet> ROUTE_ALPHABETS =
+		new LeastRecentlyUsed<RouteAlphabet>();
+	private static final LeastRecentlyUsed<ActionAlphabet> ACTION_ALPHABETS =
+		new LeastRecentlyUsed<ActionAlphabet>();
+	private static final LeastRecentlyUsed<ActionAlphabet> 
+		ACTION_ALPHABETS_WITH_ACC_MOD = 
+			new LeastRecentlyUsed<ActionAlphabet>();
+
+	private AlphabetCache() {
+	}
+
+	/**
+	 * Returns the shared RouteAlphabet with the same labels as the given one.
+	 */
+	public static RouteAlphabet routeAlphabet(
+			final RouteAlphabet routeAlphabet) {
+		return routeAlphabet(routeAlphabet.destAlphabet(),
+			routeAlphabet.asPathAlphabet(), routeAlphabet.prefAlphabet(),
+			routeAlphabet.comAlphabet());
+	}
+
+	/**
+	 * Returns the shared RouteAlphabet made of the given labels.
+	 */
+	public static RouteAlphabet routeAlphabet(
+			final Set<IntegerLabel> destAlphabet,
+			final Set<IntegerLabel> asPathAlphabet,
+			final Set<IntegerLabel> prefAlphabet,
+			final Set<IntegerLabel> comAlphabet) {
+		final List<Set<IntegerLabel>> key =
+			key(destAlphabet, asPathAlphabet, prefAlphabet, comAlphabet);
+		RouteAlphabet alphabet = ROUTE_ALPHABETS.cached(key);
+		if (alphabet == null) {
+			alphabet = ROUTE_ALPHABETS.cache(key, new RouteAlphabet(
+				key.get(0), key.get(1), key.get(2), key.get(3)));
+		}
+		return alphabet;
+	}
+
+	/**
+	 * Returns the shared ActionAlphabet built on the given RouteAlphabet.
+	 */
+	public static ActionAlphabet actionAlphabet(
+			final RouteAlphabet routeAlphabet) {
+		return actionAlphabet(routeAlphabet, false);
+	}
+
+	/**
+	 * Returns the shared ActionAlphabet built on the given RouteAlphabet,
+	 * with label (ACCEPTED,MODIFIED) if withAccMod is true.
+	 */
+	public static ActionAlphabet actionAlphabet(
+			final RouteAlphabet routeAlphabet, final boolean withAccMod) {
+		final LeastRecentlyUsed<ActionAlphabet> cache =
+			withAccMod ? ACTION_ALPHABETS_WITH_ACC_MOD : ACTION_ALPHABETS;
+		final List<Set<IntegerLabel>> key = key(routeAlphabet.destAlphabet(),
+			routeAlphabet.asPathAlphabet(), routeAlphabet.prefAlphabet(),
+			routeAlphabet.comAlphabet());
+		ActionAlphabet alphabet = cache.cached(key);
+		if (alphabet == null) {
+			alphabet = new ActionAlphabet(
+				routeAlphabet(routeAlphabet), withAccMod);
+			// computes the primitive tables once for all users
+			alphabet.labelCodec();
+			alphabet = cache.cache(key, alphabet);
+		}
+		return alphabet;
+	}
+
+	/**
+	 * Removes all alphabets from the cache.
+	 */
+	public static void clear() {
+		ROUTE_ALPHABETS.clear();
+		ACTION_ALPHABETS.clear();
+		ACTION_ALPHABETS_WITH_ACC_MOD.clear();
+	}
+
+	private static List<Set<IntegerLabel>> key(
+			final Set<IntegerLabel> destAlphabet,
+			final Set<IntegerLabel> asPathAlphabet,
+			final Set<IntegerLabel> prefAlphabet,
+			final Set<IntegerLabel> comAlphabet) {
+		List<Set<IntegerLabel>> key = new ArrayList<Set<IntegerLabel>>(4);
+		key.add(Collections.unmodifiableSet(
+			new HashSet<IntegerLabel>(destAlphabet)));
+		key.add(Collections.unmodifiableSet(
+			new HashSet<IntegerLabel>(asPathAlphabet)));
+		key.add(Collections.unmodifiableSet(
+			new HashSet<IntegerLabel>(prefAlphabet)));
+		key.add(Collections.unmodifiableSet(
+			new HashSet<IntegerLabel>(comAlphabet)));
+		return Collections.unmodifiableList(key);
+	}
+
+	/**
+	 * Map keeping the alphabets most recently used. The alphabets are built
+	 * outside of its lock.
+	 */
+	private static final class LeastRecentlyUsed<A> 
+		extends LinkedHashMap<List<Set<IntegerLabel>>,A> {
+
+		private static final long serialVersionUID = 1L;
+
+		LeastRecentlyUsed() {
+			super(16, 0.75f, true);
+		}
+
+		/**
+		 * Returns the alphabet with the given key, or null if none is kept.
+		 */
+		synchronized A cached(final List<Set<IntegerLabel>> key) {
+			return get(key);
+		}
+
+		/**
+		 * Keeps the given alphabet, unless an alphabet with the same key has
+		 * been kept meanwhile, and returns the kept one.
+		 */
+		synchronized A cache(final List<Set<IntegerLabel>> key, 
+				final A alphabet) {
+			final A previous = get(key);
+			if (previous != null) {
+				return previous;
+			}
+			put(key, alphabet);
+			return alphabet;
+		}
+
+		@Override
+		public synchronized void clear() {
+			super.clear();
+		}
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<List<Set<IntegerLabel>>,A> eldest) {
+			return size() > CAPACITY;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import traul.ranked.nta.rules.IRule;
+
+/**
+ * Chooses the order in which a sequence of automata is composed. The 
+ * automata are always applied in the same order, but since composition is
+ * associative, the products can be grouped in any way, as for a chain of 
+ * matrix multiplications. The size of each product is estimated from the
+ * number of rules, states and labels of each branch of its operands, and
+ * the grouping minimizing the sum of the estimated sizes of the 
+ * intermediate products is chosen by dynamic programming.
+ * <p>
+ * The planner records the plan of each composition, with the estimated and
+ * actual sizes of the intermediate automata (see {@link #toString()}).
+ */
+public class CompositionPlanner {
+
+	private final List<Plan> plans = new ArrayList<Plan>();
+
+	/**
+	 * Composes a sequence of automata.
+	 * @param automata the automata, in the order in which they are applied
+	 * @return an automaton recognizing the composition's language, where 
+	 *   only reachable states are kept
+	 */
+	public FilterAutomaton compose(final List<FilterAutomaton> automata) {
+		final int n = automata.size();
+		if (n == 1) {
+			return automata.get(0);
+		}
+		// best grouping of automata[i..j] (inclusive)
+		final long[][] cost = new long[n][n];
+		final int[][] split = new int[n][n];
+		final Estimate[][] estimate = new Estimate[n][n];
+		for (int i=0; i<n; i++) {
+			estimate[i][i] = Estimate.of(automata.get(i));
+		}
+		for (int length=2; length<=n; length++) {
+			for (int i=0; i+length-1<n; i++) {
+				final int j = i+length-1;
+				cost[i][j] = Long.MAX_VALUE;
+				for (int k=i; k<j; k++) {
+					final Estimate product =
+						estimate[i][k].then(estimate[k+1][j]);
+					final long productCost =
+						saturatedAdd(saturatedAdd(cost[i][k], cost[k+1][j]),
+							product.rules());
+					if (productCost < cost[i][j]) {
+						cost[i][j] = productCost;
+						split[i][j] = k;
+						estimate[i][j] = product;
+					}
+				}
+			}
+		}
+		final Plan plan = new Plan(groupingString(split, 0, n-1));
+		final FilterAutomaton result = 
+			compose(automata, split, estimate, 0, n-1, plan);
+		synchronized (this.plans) {
+			this.plans.add(plan);
+		}
+		return result;
+	}
+
+	private FilterAutomaton compose(final List<FilterAutomaton> automata,
+			final int[][] split, final Estimate[][] estimate, 
+			final int from, final int to, final Plan plan) {
+		if (from == to) {
+			return automata.get(from);
+		}
+		final int k = split[from][to];
+		final FilterAutomaton first =
+			compose(automata, split, estimate, from, k, plan);
+		final FilterAutomaton last =
+			compose(automata, split, estimate, k+1, to, plan);
+		final FilterAutomaton product = last.composeReachable(first);
+		plan.steps.add(new Step(from, to, estimate[from][to], 
+			Estimate.of(product)));
+		return product;
+	}
+
+	private static String groupingString(final int[][] split, 
+			final int from, final int to) {
+		if (from == to) {
+			return Integer.toString(from);
+		}
+		final int k = split[from][to];
+		return "(" + groupingString(split, from, k) + " " 
+			+ groupingString(split, k+1, to) + ")";
+	}
+
+	private static long saturatedAdd(final long a, final long b) {
+		final long sum = a+b;
+		return sum < 0 ? Long.MAX_VALUE : sum;
+	}
+
+	private static long saturatedMultiply(final long a, final long b) {
+		if (a != 0 && b > Long.MAX_VALUE/a) {
+			return Long.MAX_VALUE;
+		}
+		return a*b;
+	}
+
+	/**
+	 * Returns the plans of the compositions computed by this planner.
+	 */
+	public List<Plan> plans() {
+		synchronized (this.plans) {
+			return Collections.unmodifiableList(
+				new ArrayList<Plan>(this.plans));
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		for (Plan plan : plans()) {
+			sb.append(plan.toString());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Plan of a composition: the grouping of the automata (numbered from 0,
+	 * in the order in which they are applied), and the intermediate products
+	 * in the order in which they have been computed.
+	 */
+	public static final class Plan {
+
+		private final String grouping;
+		private final List<Step> steps = new ArrayList<Step>();
+
+		private Plan(final String grouping) {
+			this.grouping = grouping;
+		}
+
+		public String grouping() { return this.grouping; }
+		public List<Step> steps() { 
+			return Collections.unmodifiableList(this.steps);
+		}
+
+		@Override
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append("plan ").append(this.grouping).append("\n");
+			for (Step step : this.steps) {
+				sb.append("  ").append(step.toString()).append("\n");
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Product of the automata from..to (inclusive).
+	 */
+	public static final class Step {
+
+		private final int from, to;
+		private final Estimate estimated, actual;
+
+		private Step(final int from, final int to, final Estimate estimated,
+				final Estimate actual) {
+			this.from = from;
+			this.to = to;
+			this.estimated = estimated;
+			this.actual = actual;
+		}
+
+		public int from() { return this.from; }
+		public int to()   { return this.to; }
+		public long estimatedRules()  { return this.estimated.rules(); }
+		public long estimatedStates() { return this.estimated.states(); }
+		public long actualRules()     { return this.actual.rules(); }
+		public long actualStates()    { return this.actual.states(); }
+
+		@Override
+		public String toString() {
+			return "[" + this.from + ".." + this.to + "] estimated: " 
+				+ estimatedRules() + " rules, " + estimatedStates() 
+				+ " states; actual: " + actualRules() + " rules, " 
+				+ actualStates() + " states";
+		}
+	}
+
+	/**
+	 * Numbers of rules, states and labels of each branch of an automaton
+	 * (DEST, AS-path, PREF, COM, MOD and root).
+	 */
+	private static final class Estimate {
+
+		private static final int BRANCHES = 6;
+
+		private final long[] rules = new long[BRANCHES];
+		private final long[] states = new long[BRANCHES];
+		private final long[] labels = new long[BRANCHES];
+
+		static Estimate of(final FilterAutomaton automaton) {
+			final Estimate estimate = new Estimate();
+			estimate.count(0, automaton.getRulesDest());
+			estimate.count(1, automaton.getRulesPath());
+			estimate.count(2, automaton.getRulesPref());
+			estimate.count(3, automaton.getRulesCom());
+			estimate.count(4, automaton.getRulesMod());
+			estimate.count(5, automaton.getRulesRoot());
+			return estimate;
+		}
+
+		private void count(final int branch,
+				final Set<IRule<LabelPair, FilterState>> branchRules) {
+			Set<FilterState> branchStates = new HashSet<FilterState>();
+			Set<LabelPair> branchLabels = new HashSet<LabelPair>();
+			for (IRule<LabelPair, FilterState> rule : branchRules) {
+				branchStates.add(rule.rightState());
+				branchStates.addAll(rule.leftStates());
+				branchLabels.add(rule.label());
+			}
+			this.rules[branch] = branchRules.size();
+			this.states[branch] = branchStates.size();
+			this.labels[branch] = branchLabels.size();
+		}
+
+		/**
+		 * Estimated sizes of the composition of this automaton, followed by
+		 * the other one: a rule of this automaton is joined with the rules
+		 * of the other one reading its output, assuming that rules are
+		 * evenly spread over labels.
+		 */
+		Estimate then(final Estimate other) {
+			final Estimate estimate = new Estimate();
+			for (int b=0; b<BRANCHES; b++) {
+				final long products = 
+					saturatedMultiply(this.rules[b], other.rules[b]);
+				final long rulesB = products / 
+					Math.max(1, Math.max(this.labels[b], other.labels[b]));
+				estimate.rules[b] = rulesB;
+				estimate.states[b] = Math.min(
+					saturatedMultiply(this.states[b], other.states[b]), 
+					rulesB+1);
+				estimate.labels[b] = Math.min(
+					Math.max(this.labels[b], other.labels[b]), rulesB);
+			}
+			return estimate;
+		}
+
+		long rules() {
+			long sum = 0;
+			for (int b=0; b<BRANCHES; b++) {
+				sum = saturatedAdd(sum, this.rules[b]);
+			}
+			return sum;
+		}
+
+		long states() {
+			long sum = 0;
+			for (int b=0; b<BRANCHES; b++) {
+				sum = saturatedAdd(sum, this.states[b]);
+			}
+			return sum;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import traul.ranked.nta.labels.ILabel;
+import traul.ranked.nta.rules.IRule;
+
+/**
+ * Equivalence of two filter automata up to congruence. The states of both
+ * automata are kept in the classes of a union-find structure: when a route
+ * reaches a state p of the first automaton and a state q of the second one
+ * with the same image, the classes of p and q are merged. Two rules reading
+ * the same input are then joined as soon as their left states are pairwise 
+ * in the same class, instead of waiting for each pair to be reached, so that
+ * pairs of states known to be equal are never explored again. Pairs reached
+ * with different images are kept as they are, and the automata may differ
+ * only if such a pair is made of two final states.
+ * <p>
+ * The classes contain every pair of states reached by the product (see 
+ * FilterAutomaton.equivalent(FilterAutomaton)), and possibly more: when no 
+ * difference is found, the automata are equivalent, but a difference found
+ * here may not be a real one and has to be confirmed by the product.
+ * <p>
+ * The classes are kept in arrays indexed by the ids of the states: the 
+ * parent of each state, and the next member of its class in a circular 
+ * list.
+ */
+class CongruenceEquivalence {
+
+	private final DiamondPadding padded1;
+	private final DiamondPadding padded2;
+	private final Map<ILabel, List<IRule<LabelPair, FilterState>>> rules1;
+	private final Map<ILabel, List<IRule<LabelPair, FilterState>>> rules2;
+
+	// both automata may share states: they have different ids
+	private final Map<FilterState, Integer> ids1 = 
+		new HashMap<FilterState, Integer>();
+	private final Map<FilterState, Integer> ids2 = 
+		new HashMap<FilterState, Integer>();
+	private final List<FilterState> states = new ArrayList<FilterState>();
+	private final BitSet firstStates = new BitSet();
+	private int[] parent = new int[64];
+	private int[] nextMember = new int[64];
+	private int[] classSize = new int[64];
+	private final LongIntHashMap differentPairs = new LongIntHashMap();
+	private final BitSet toVisit = new BitSet();
+	private int[] agenda = new int[64];
+	private int agendaHead = 0;
+	private int agendaTail = 0;
+	private boolean mayDiffer = false;
+
+	/**
+	 * Constructor
+	 * @param padded1 the first automaton, with its diamond rules
+	 * @param padded2 the second automaton, with its diamond rules
+	 */
+	CongruenceEquivalence(final DiamondPadding padded1,
+			final DiamondPadding padded2) {
+		this.padded1 = padded1;
+		this.padded2 = padded2;
+		this.rules1 = padded1.rulesByInput();
+		this.rules2 = padded2.rulesByInput();
+	}
+
+	/**
+	 * Returns true if both automata are proved equivalent, false if they may
+	 * differ.
+	 */
+	boolean provesEquivalence() {
+		final FilterAutomaton automaton1 = this.padded1.automaton();
+		final FilterAutomaton automaton2 = this.padded2.automaton();
+		for (LabelPair leafLabel1 : 
+			automaton1.getAlphabet().getSymbolsOfArity(0)) {
+			for (LabelPair leafLabel2 : 
+				automaton2.getAlphabet().getSymbolsOfArity(0)) {
+				if (!leafLabel1.left().equals(leafLabel2.left())) {
+					continue;
+				}
+				final boolean differs = 
+					!leafLabel1.right().equals(leafLabel2.right());
+				for (IRule<LabelPair, FilterState> rule1 :
+					this.padded1.rulesWithLabel(leafLabel1)) {
+					for (IRule<LabelPair, FilterState> rule2 :
+						this.padded2.rulesWithLabel(leafLabel2)) {
+						relate(id(rule1.rightState(), true),
+							id(rule2.rightState(), false), differs);
+					}
+				}
+			}
+		}
+		while (!this.mayDiffer && this.agendaHead != this.agendaTail) {
+			final int id = this.agenda[this.agendaHead++];
+			this.toVisit.clear(id);
+			visit(id);
+		}
+		return !this.mayDiffer;
+	}
+
+	/**
+	 * Joins the rules using a state with the rules of the other automaton
+	 * reading the same input.
+	 */
+	private void visit(final int id) {
+		final FilterState state = this.states.get(id);
+		final boolean first = isFirst(id);
+		final Set<IRule<LabelPair, FilterState>> rulesUsing = first ?
+			this.padded1.rulesUsingLeftState(state) :
+			this.padded2.rulesUsingLeftState(state);
+		for (IRule<LabelPair, FilterState> rule : rulesUsing) {
+			final List<IRule<LabelPair, FilterState>> otherRules = first ?
+				this.rules2.get(rule.label().left()) :
+				this.rules1.get(rule.label().left());
+			if (otherRules == null) {
+				continue;
+			}
+			for (IRule<LabelPair, FilterState> otherRule : otherRules) {
+				if (first) {
+					join(rule, otherRule);
+				} else {
+					join(otherRule, rule);
+				}
+				if (this.mayDiffer) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Joins a rule of the first automaton with a rule of the second one 
+	 * reading the same input.
+	 */
+	private void join(final IRule<LabelPair, FilterState> rule1,
+			final IRule<LabelPair, FilterState> rule2) {
+		final int arity = rule1.leftStates().size();
+		if (rule2.leftStates().size() != arity) {
+			return;
+		}
+		boolean allEqual = true;
+		boolean someDifferent = 
+			!rule1.label().right().equals(rule2.label().right());
+		for (int i=0; i<arity; i++) {
+			final int id1 = id(rule1.leftStates().get(i), true);
+			final int id2 = id(rule2.leftStates().get(i), false);
+			final boolean equal = find(id1) == find(id2);
+			final boolean different = 
+				this.differentPairs.containsKey(pair(id1, id2));
+			if (!equal && !different) {
+				return;
+			}
+			allEqual &= equal;
+			someDifferent |= different;
+		}
+		final int right1 = id(rule1.rightState(), true);
+		final int right2 = id(rule2.rightState(), false);
+		if (allEqual && rule1.label().right().equals(rule2.label().right())) {
+			relate(right1, right2, false);
+		}
+		if (someDifferent) {
+			relate(right1, right2, true);
+		}
+	}
+
+	/**
+	 * Records that a route reaches the given states, with the same image or
+	 * not.
+	 */
+	private void relate(final int id1, final int id2, final boolean differs) {
+		if (differs) {
+			final long pair = pair(id1, id2);
+			if (!this.differentPairs.containsKey(pair)) {
+				this.differentPairs.putIfAbsent(pair, 1);
+				this.mayDiffer |= 
+					this.padded1.automaton().getFinalStates().contains(
+						this.states.get(id1)) &&
+					this.padded2.automaton().getFinalStates().contains(
+						this.states.get(id2));
+				schedule(id1);
+			}
+			return;
+		}
+		final int root1 = find(id1);
+		final int root2 = find(id2);
+		if (root1 == root2) {
+			return;
+		}
+		// the members of the smaller class are joined again
+		final boolean firstLarger = 
+			this.classSize[root1] >= this.classSize[root2];
+		final int root = firstLarger ? root1 : root2;
+		final int other = firstLarger ? root2 : root1;
+		int member = other;
+		do {
+			schedule(member);
+			member = this.nextMember[member];
+		} while (member != other);
+		this.parent[other] = root;
+		this.classSize[root] += this.classSize[other];
+		// splices both circular lists of members
+		final int next = this.nextMember[root];
+		this.nextMember[root] = this.nextMember[other];
+		this.nextMember[other] = next;
+	}
+
+	private void schedule(final int id) {
+		if (!this.toVisit.get(id)) {
+			this.toVisit.set(id);
+			if (this.agendaTail == this.agenda.length) {
+				final int[] agenda = new int[2*this.agenda.length];
+				System.arraycopy(this.agenda, this.agendaHead, agenda, 0, 
+					this.agendaTail - this.agendaHead);
+				this.agendaTail -= this.agendaHead;
+				this.agendaHead = 0;
+				this.agenda = agenda;
+			}
+			this.agenda[this.agendaTail++] = id;
+		}
+	}
+
+	private int find(final int id) {
+		int root = id;
+		while (this.parent[root] != root) {
+			root = this.parent[root];
+		}
+		// path compression
+		int current = id;
+		while (current != root) {
+			final int next = this.parent[current];
+			this.parent[current] = root;
+			current = next;
+		}
+		return root;
+	}
+
+	/**
+	 * Id of a state of the first or of the second automaton, created if 
+	 * needed in its own class.
+	 */
+	private int id(final FilterState state, final boolean first) {
+		final Map<FilterState, Integer> ids = first ? this.ids1 : this.ids2;
+		Integer id = ids.get(state);
+		if (id == null) {
+			id = this.states.size();
+			this.states.add(state);
+			if (id == this.parent.length) {
+				this.parent = Arrays.copyOf(this.parent, 2*id);
+				this.nextMember = Arrays.copyOf(this.nextMember, 2*id);
+				this.classSize = Arrays.copyOf(this.classSize, 2*id);
+			}
+			this.parent[id] = id;
+			this.nextMember[id] = id;
+			this.classSize[id] = 1;
+			this.firstStates.set(id, first);
+			ids.put(state, id);
+		}
+		return id;
+	}
+
+	private boolean isFirst(final int id) {
+		return this.firstStates.get(id);
+	}
+
+	private static long pair(final int id1, final int id2) {
+		return ((long)id1 << 32) | id2;
+	}
+}
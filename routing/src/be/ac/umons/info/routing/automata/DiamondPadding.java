@@ -0,0 +1,209 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import traul.ranked.nta.labels.ILabel;
+import traul.ranked.nta.rules.BasicRule;
+import traul.ranked.nta.rules.IRule;
+import traul.ranked.terms.ITerm;
+
+/**
+ * Rules allowing pairs of diamonds below the leaves of the PATH and COM
+ * branches of a filter automaton (see FilterAutomaton.addDiamondRules()).
+ * Instead of copying the automaton with these rules, the composition and the
+ * equivalence test ask this view for them when they need them: they are the
+ * leaf (diamond,diamond) --> qDiamond, the loop on qDiamond, and a unary
+ * version of each leaf rule of the branch, reading qDiamond.
+ */
+final class DiamondPadding {
+
+	private static final IRule<LabelPair, FilterState> LEAF_RULE =
+		new BasicRule<LabelPair, FilterState>(
+			ActionAlphabet.DIAMONDDIAMOND, RuleComposition.Q_DIAMOND);
+	private static final IRule<LabelPair, FilterState> LOOP_RULE =
+		new BasicRule<LabelPair, FilterState>(ActionAlphabet.DIAMONDDIAMOND1,
+			RuleComposition.Q_DIAMOND, RuleComposition.Q_DIAMOND);
+
+	private final FilterAutomaton automaton;
+	private final Set<IRule<LabelPair, FilterState>> rulesUsingDiamond;
+
+	/**
+	 * Constructor
+	 * @param automaton the automaton whose PATH and COM branches are padded
+	 */
+	DiamondPadding(final FilterAutomaton automaton) {
+		this.automaton = automaton;
+		this.rulesUsingDiamond = new HashSet<IRule<LabelPair, FilterState>>();
+		this.rulesUsingDiamond.add(LOOP_RULE);
+		addUnaryRules(automaton.getRulesPath(), this.rulesUsingDiamond);
+		addUnaryRules(automaton.getRulesCom(), this.rulesUsingDiamond);
+	}
+
+	/**
+	 * Returns the automaton, without its padding rules.
+	 */
+	FilterAutomaton automaton() {
+		return this.automaton;
+	}
+
+	/**
+	 * Returns the rules of the padded automaton having the given state on 
+	 * their left.
+	 */
+	Set<IRule<LabelPair, FilterState>> rulesUsingLeftState(
+			final FilterState state) {
+		if (RuleComposition.Q_DIAMOND.equals(state)) {
+			return this.rulesUsingDiamond;
+		}
+		return this.automaton.getRulesUsingLeftState(state);
+	}
+
+	/**
+	 * Returns the rules of the padded automaton having the given label.
+	 */
+	Set<IRule<LabelPair, FilterState>> rulesWithLabel(final LabelPair label) {
+		final Set<IRule<LabelPair, FilterState>> rules = 
+			this.automaton.getRulesWithLabel(label, false);
+		if (!LEAF_RULE.label().equals(label)) {
+			return rules;
+		}
+		final Set<IRule<LabelPair, FilterState>> withLeaf = 
+			new HashSet<IRule<LabelPair, FilterState>>(rules);
+		withLeaf.add(LEAF_RULE);
+		return withLeaf;
+	}
+
+	/**
+	 * True iff the padded automaton accepts the term, eg. a separating route
+	 * whose PATH or COM branch is padded with diamonds. The states reached 
+	 * by each subterm are computed bottom-up, without copying the automaton.
+	 */
+	boolean accepts(final ITerm<LabelPair> term) {
+		for (FilterState state : reachedStates(term)) {
+			if (this.automaton.getFinalStates().contains(state)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Set<FilterState> reachedStates(final ITerm<LabelPair> term) {
+		final List<Set<FilterState>> children = 
+			new ArrayList<Set<FilterState>>();
+		for (ITerm<LabelPair> child : term.children()) {
+			children.add(reachedStates(child));
+		}
+		final Set<FilterState> reached = new HashSet<FilterState>();
+		addReachedStates(rulesWithLabel(term.rootLabel()), term.rootLabel(),
+			children, reached);
+		if (children.size() == 1 && 
+				children.get(0).contains(RuleComposition.Q_DIAMOND)) {
+			addReachedStates(this.rulesUsingDiamond, term.rootLabel(),
+				children, reached);
+		}
+		return reached;
+	}
+
+	private static void addReachedStates(
+			final Collection<IRule<LabelPair, FilterState>> rules,
+			final LabelPair label, final List<Set<FilterState>> children,
+			final Set<FilterState> reached) {
+		for (IRule<LabelPair, FilterState> rule : rules) {
+			if (!rule.label().equals(label) || 
+					rule.leftStates().size() != children.size()) {
+				continue;
+			}
+			boolean applies = true;
+			for (int i=0; i<children.size() && applies; i++) {
+				applies = children.get(i).contains(rule.leftStates().get(i));
+			}
+			if (applies) {
+				reached.add(rule.rightState());
+			}
+		}
+	}
+
+	/**
+	 * Returns the rules of the padded automaton, by the input component of 
+	 * their label.
+	 */
+	Map<ILabel, List<IRule<LabelPair, FilterState>>> rulesByInput() {
+		final Set<IRule<LabelPair, FilterState>> rules = 
+			new HashSet<IRule<LabelPair, FilterState>>(
+				this.automaton.getRules(false));
+		rules.addAll(rules(this.automaton.getRulesPath()));
+		rules.addAll(rules(this.automaton.getRulesCom()));
+		final Map<ILabel, List<IRule<LabelPair, FilterState>>> byInput = 
+			new HashMap<ILabel, List<IRule<LabelPair, FilterState>>>();
+		for (IRule<LabelPair, FilterState> rule : rules) {
+			List<IRule<LabelPair, FilterState>> list = 
+				byInput.get(rule.label().left());
+			if (list == null) {
+				list = new ArrayList<IRule<LabelPair, FilterState>>();
+				byInput.put(rule.label().left(), list);
+			}
+			list.add(rule);
+		}
+		return byInput;
+	}
+
+	/**
+	 * Returns the padding rules of a branch.
+	 */
+	static List<IRule<LabelPair, FilterState>> rules(
+			final Set<IRule<LabelPair, FilterState>> branchRules) {
+		final List<IRule<LabelPair, FilterState>> rules = 
+			new ArrayList<IRule<LabelPair, FilterState>>();
+		rules.add(LEAF_RULE);
+		rules.add(LOOP_RULE);
+		addUnaryRules(branchRules, rules);
+		return rules;
+	}
+
+	/**
+	 * True iff the label is a (diamond,diamond) label: rules with such labels
+	 * are only needed while composing, and are not kept in composed automata.
+	 */
+	static boolean isPaddingLabel(final LabelPair label) {
+		return label.equals(ActionAlphabet.DIAMONDDIAMOND) ||
+			label.equals(ActionAlphabet.DIAMONDDIAMOND1);
+	}
+
+	private static void addUnaryRules(
+			final Set<IRule<LabelPair, FilterState>> branchRules,
+			final Collection<IRule<LabelPair, FilterState>> rules) {
+		for (IRule<LabelPair, FilterState> initialRule : branchRules) {
+			if (initialRule.leftStates().size()==0) {
+				rules.add(new BasicRule<LabelPair, FilterState>(
+					new UnaryVersionLabelPair(initialRule.label()),
+					initialRule.rightState(), RuleComposition.Q_DIAMOND));
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+
+package be.ac.umons.info.routing.automata;
+
+/**
+ * The ways of checking the equivalence of two filter automata (see 
+ * FilterAutomaton.equivalent(FilterAutomaton, EquivalenceStrategy)).
+ */
+public enum EquivalenceStrategy {
+
+	/**
+	 * Explores the pairs of states of both automata reached by a same route,
+	 * remembering whether the images of the route differ.
+	 */
+	PRODUCT,
+
+	/**
+	 * Merges the pairs of states reached with a same image in classes of a
+	 * union-find structure, and explores the rules up to these classes (see
+	 * {@link CongruenceEquivalence}). A possible difference is confirmed by
+	 * the exploration of the product: for automata which are not 
+	 * equivalent, this strategy thus costs the union-find pass plus the
+	 * whole product, since the differences found by the classes may not be
+	 * real ones and cannot seed it.
+	 */
+	UNION_FIND,
+
+	/**
+	 * Explores the product by increasing size of the routes reaching each 
+	 * pair of states, so that the separating route is a smallest one.
+	 */
+	SMALLEST_ROUTE
+}
@@ -20,18 +20,25 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package be.ac.umons.info.routing.automata;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import traul.ranked.nta.INTA;
 import traul.ranked.nta.NTA;
 import traul.ranked.nta.rules.BasicRule;
 import traul.ranked.nta.rules.IRule;
-import traul.ranked.nta.states.IState;
 import traul.ranked.terms.ITerm;
 import traul.ranked.terms.Term;
 
@@ -49,6 +56,7 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 	private final Set<IRule<LabelPair, FilterState>> rulesRoot;
 	private final ActionAlphabet actionAlphabet;
 
+
 	/**
 	 * Constructor
 	 */
@@ -103,6 +111,82 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 		return this.actionAlphabet;
 	}
 	
+	/**
+	 * Returns the same automaton, where states have been renamed with 
+	 * integers.
+	 */
+	public FilterAutomaton renumberStates() {
+		return new StateRenumbering(this).automaton();
+	}
+
+	/**
+	 * Returns an equivalent automaton, where the states that are bisimilar
+	 * have been merged (see {@link ForwardBisimulation}), until no more 
+	 * states can be merged: minimizing the result again returns it. The 
+	 * rules of each branch are renamed, identity branches being kept as 
+	 * such.
+	 */
+	public FilterAutomaton minimize() {
+		FilterAutomaton automaton = this;
+		FilterAutomaton merged = automaton.mergeBisimilarStates();
+		while (merged != automaton) {
+			automaton = merged;
+			merged = automaton.mergeBisimilarStates();
+		}
+		return automaton;
+	}
+
+	/**
+	 * Merges the bisimilar states once, returns this if there are none.
+	 */
+	private FilterAutomaton mergeBisimilarStates() {
+		final ForwardBisimulation<LabelPair, FilterState> bisimulation =
+			new ForwardBisimulation<LabelPair, FilterState>(this.getStates(),
+				this.getFinalStates(), this.sinkState(), this.getRules(false));
+		if (bisimulation.classes() == this.getStates().size()) {
+			return this;
+		}
+		return new FilterAutomaton(this.actionAlphabet, 
+			bisimulation.representatives(this.getStates()),
+			bisimulation.representatives(this.getFinalStates()),
+			bisimulation.representative(this.sinkState()),
+			mergedRules(this.rulesDest, bisimulation),
+			mergedRules(this.rulesPath, bisimulation),
+			mergedRules(this.rulesPref, bisimulation),
+			mergedRules(this.rulesCom, bisimulation),
+			mergedRules(this.rulesMod, bisimulation),
+			mergedRules(this.rulesRoot, bisimulation));
+	}
+
+	private static Set<IRule<LabelPair, FilterState>> mergedRules(
+			final Set<IRule<LabelPair, FilterState>> branchRules,
+			final ForwardBisimulation<LabelPair, FilterState> bisimulation) {
+		final IdentityBranch identity = IdentityBranch.of(branchRules);
+		if (identity != null) {
+			final FilterState state = 
+				bisimulation.representative(identity.state());
+			if (state.equals(identity.state())) {
+				return identity;
+			}
+			final IdentityBranch renamed = identity.withState(state);
+			if (renamed != null) {
+				return renamed;
+			}
+		}
+		Set<IRule<LabelPair, FilterState>> rules =
+			new HashSet<IRule<LabelPair, FilterState>>();
+		for (IRule<LabelPair, FilterState> rule : branchRules) {
+			List<FilterState> leftStates = 
+				new ArrayList<FilterState>(rule.leftStates().size());
+			for (FilterState leftState : rule.leftStates()) {
+				leftStates.add(bisimulation.representative(leftState));
+			}
+			rules.add(new BasicRule<LabelPair, FilterState>(leftStates, 
+				rule.label(), bisimulation.representative(rule.rightState())));
+		}
+		return rules;
+	}
+
 	/**
 	 * Simple type conversion.
 	 */
@@ -119,40 +203,42 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 	 */
 	public FilterAutomaton compose(final FilterAutomaton automaton)	{
 		
-		final FilterAutomaton automaton1 = automaton.addDiamondRules();
-		final FilterAutomaton automaton2 = this.addDiamondRules();
+		// the PATH and COM branches are padded with diamonds on the fly
+		final FilterAutomaton automaton1 = automaton;
+		final FilterAutomaton automaton2 = this;
 		
 		final ActionAlphabet alphabet = 
 			(ActionAlphabet)automaton.getAlphabet();
+		final RuleComposition composition = new RuleComposition(alphabet);
 		
 		// compose rules of DEST
 		final Set<IRule<LabelPair, FilterState>> rulesDestResult = 
-			computeCompositionRules(alphabet, 
+			composition.compose(
 					automaton1.getRulesDest(), automaton2.getRulesDest());
 				
 		// compose rules of AS-path
 		final Set<IRule<LabelPair, FilterState>> rulesPathResult = 
-			computeCompositionRules(alphabet, 
-					automaton1.getRulesPath(), automaton2.getRulesPath());
+			composition.compose(
+					automaton1.getRulesPath(), automaton2.getRulesPath(), true);
 		
 		// compose rules of PREF
 		Set<IRule<LabelPair, FilterState>> rulesPrefResult = 
-			computeCompositionRules(alphabet, 
+			composition.compose(
 					automaton1.getRulesPref(), automaton2.getRulesPref());
 		
 		// compose rules of COM
 		Set<IRule<LabelPair, FilterState>> rulesComResult = 
-			computeCompositionRules(alphabet, 
-					automaton1.getRulesCom(), automaton2.getRulesCom());
+			composition.compose(
+					automaton1.getRulesCom(), automaton2.getRulesCom(), true);
 		
 		// compose rules of MOD
 		Set<IRule<LabelPair, FilterState>> rulesModResult = 
-			computeCompositionRules(alphabet, 
+			composition.compose(
 					automaton1.getRulesMod(), automaton2.getRulesMod());
 				
 		// compose rules of Root
 		Set<IRule<LabelPair, FilterState>> rulesRootResult = 
-			computeCompositionRules(alphabet, 
+			composition.compose(
 					automaton1.getRulesRoot(), automaton2.getRulesRoot());
 		
 		// states
@@ -164,16 +250,239 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 		statesResult.addAll(statesInRules(rulesModResult));
 		statesResult.addAll(statesInRules(rulesRootResult));
 		
-		final FilterState sinkResult = 
-			new FilterState(automaton1.sinkState(), automaton2.sinkState());
+		return composedAutomaton(alphabet, composition, automaton1, automaton2,
+				statesResult, rulesDestResult, rulesPathResult, 
+				rulesPrefResult, rulesComResult, rulesModResult, 
+				rulesRootResult);
+	}
+
+	/**
+	 * Computes the composition of this action (resp. rule) with an action 
+	 * (resp. rule)'s automata, like {@link #compose(FilterAutomaton)}, but 
+	 * only builds the states and rules that are reachable from the leaves.
+	 * The result is the same as compose(automaton).cleanInaccessibleStates().
+	 * @param automaton the action's automata
+	 * @return an automaton recognizing the composition's language
+	 */
+	public FilterAutomaton composeReachable(final FilterAutomaton automaton) {
+		
+		// the PATH and COM branches are padded with diamonds on the fly
+		final FilterAutomaton automaton1 = automaton;
+		final FilterAutomaton automaton2 = this;
+		
+		final ActionAlphabet alphabet = 
+			(ActionAlphabet)automaton.getAlphabet();
+		final RuleComposition composition = new RuleComposition(alphabet);
+		
+		// the branches are independent: each one is explored from its leaves
+		Set<FilterState> statesResult = new HashSet<FilterState>();
+		Set<FilterState> reachedStates = new HashSet<FilterState>();
+		final Set<IRule<LabelPair, FilterState>> rulesDestResult = 
+			composition.composeReachable(automaton1.getRulesDest(), 
+					automaton2.getRulesDest(), false, reachedStates);
+		statesResult.addAll(reachedStates);
+		reachedStates = new HashSet<FilterState>();
+		final Set<IRule<LabelPair, FilterState>> rulesPathResult = 
+			composition.composeReachable(automaton1.getRulesPath(), 
+					automaton2.getRulesPath(), true, reachedStates);
+		statesResult.addAll(reachedStates);
+		reachedStates = new HashSet<FilterState>();
+		final Set<IRule<LabelPair, FilterState>> rulesPrefResult = 
+			composition.composeReachable(automaton1.getRulesPref(), 
+					automaton2.getRulesPref(), false, reachedStates);
+		statesResult.addAll(reachedStates);
+		reachedStates = new HashSet<FilterState>();
+		final Set<IRule<LabelPair, FilterState>> rulesComResult = 
+			composition.composeReachable(automaton1.getRulesCom(), 
+					automaton2.getRulesCom(), true, reachedStates);
+		statesResult.addAll(reachedStates);
+		reachedStates = new HashSet<FilterState>();
+		final Set<IRule<LabelPair, FilterState>> rulesModResult = 
+			composition.composeReachable(automaton1.getRulesMod(), 
+					automaton2.getRulesMod(), false, reachedStates);
+		statesResult.addAll(reachedStates);
+		
+		// rules at the root
+		final Set<IRule<LabelPair, FilterState>> rulesRootResult = 
+			composition.composeRootReachable(automaton1.getRulesRoot(), 
+					automaton2.getRulesRoot(), statesResult);
+		statesResult.addAll(statesInRules(rulesRootResult));
+		
+		return composedAutomaton(alphabet, composition, automaton1, automaton2,
+				statesResult, rulesDestResult, rulesPathResult, 
+				rulesPrefResult, rulesComResult, rulesModResult, 
+				rulesRootResult);
+	}
+
+	/**
+	 * Computes the composition of this action (resp. rule) with an action 
+	 * (resp. rule)'s automata, like {@link #compose(FilterAutomaton)}, where
+	 * the branches are composed in parallel.
+	 * @param automaton the action's automata
+	 * @param pool the pool running the composition of the branches
+	 * @return an automaton recognizing the composition's language
+	 */
+	public FilterAutomaton compose(final FilterAutomaton automaton,
+			final ForkJoinPool pool) {
+		return composeInPool(automaton, pool, false);
+	}
+
+	/**
+	 * Computes the reachable part of the composition of this action (resp. 
+	 * rule) with an action (resp. rule)'s automata, like 
+	 * {@link #composeReachable(FilterAutomaton)}, where the branches are 
+	 * composed in parallel. The rules at the root are composed once all 
+	 * branches are done.
+	 * @param automaton the action's automata
+	 * @param pool the pool running the composition of the branches
+	 * @return an automaton recognizing the composition's language
+	 */
+	public FilterAutomaton composeReachable(final FilterAutomaton automaton,
+			final ForkJoinPool pool) {
+		return composeInPool(automaton, pool, true);
+	}
+
+	private FilterAutomaton composeInPool(final FilterAutomaton automaton,
+			final ForkJoinPool pool, final boolean reachable) {
+
+		// the PATH and COM branches are padded with diamonds on the fly
+		final FilterAutomaton automaton1 = automaton;
+		final FilterAutomaton automaton2 = this;
+
+		final ActionAlphabet alphabet = 
+			(ActionAlphabet)automaton.getAlphabet();
+		final RuleComposition composition = new RuleComposition(alphabet);
+
+		final BranchComposition dest = new BranchComposition(composition,
+			automaton1.getRulesDest(), automaton2.getRulesDest(), false, reachable);
+		final BranchComposition path = new BranchComposition(composition,
+			automaton1.getRulesPath(), automaton2.getRulesPath(), true, reachable);
+		final BranchComposition pref = new BranchComposition(composition,
+			automaton1.getRulesPref(), automaton2.getRulesPref(), false, reachable);
+		final BranchComposition com = new BranchComposition(composition,
+			automaton1.getRulesCom(), automaton2.getRulesCom(), true, reachable);
+		final BranchComposition mod = new BranchComposition(composition,
+			automaton1.getRulesMod(), automaton2.getRulesMod(), false, reachable);
+		// without reachability, the root does not depend on the branches
+		final BranchComposition root = reachable ? null :
+			new BranchComposition(composition, automaton1.getRulesRoot(),
+				automaton2.getRulesRoot(), false, false);
+		final RecursiveAction branches = new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected void compute() {
+				if (root == null) {
+					invokeAll(dest, path, pref, com, mod);
+				} else {
+					invokeAll(dest, path, pref, com, mod, root);
+				}
+			}
+		};
+		if (ForkJoinTask.getPool() == pool) {
+			// already running in the pool, eg. in a reduction of filter rules
+			branches.invoke();
+		} else {
+			pool.invoke(branches);
+		}
+
+		// states
+		Set<FilterState> statesResult = new HashSet<FilterState>();
+		statesResult.addAll(dest.states());
+		statesResult.addAll(path.states());
+		statesResult.addAll(pref.states());
+		statesResult.addAll(com.states());
+		statesResult.addAll(mod.states());
+		final Set<IRule<LabelPair, FilterState>> rulesRootResult;
+		if (root == null) {
+			rulesRootResult = composition.composeRootReachable(
+				automaton1.getRulesRoot(), automaton2.getRulesRoot(), 
+				statesResult);
+			statesResult.addAll(statesInRules(rulesRootResult));
+		} else {
+			rulesRootResult = root.getRawResult();
+			statesResult.addAll(root.states());
+		}
+
+		return composedAutomaton(alphabet, composition, automaton1, 
+				automaton2, statesResult, dest.getRawResult(), 
+				path.getRawResult(), pref.getRawResult(), com.getRawResult(),
+				mod.getRawResult(), rulesRootResult);
+	}
+
+	/**
+	 * Task composing the rules of a branch of two automata.
+	 */
+	private static final class BranchComposition 
+		extends RecursiveTask<Set<IRule<LabelPair, FilterState>>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RuleComposition composition;
+		private final Set<IRule<LabelPair, FilterState>> rules1;
+		private final Set<IRule<LabelPair, FilterState>> rules2;
+		private final boolean padded;
+		private final boolean reachable;
+		private final Set<FilterState> states = new HashSet<FilterState>();
+
+		BranchComposition(final RuleComposition composition,
+				final Set<IRule<LabelPair, FilterState>> rules1,
+				final Set<IRule<LabelPair, FilterState>> rules2,
+				final boolean padded, final boolean reachable) {
+			this.composition = composition;
+			this.rules1 = rules1;
+			this.rules2 = rules2;
+			this.padded = padded;
+			this.reachable = reachable;
+		}
+
+		@Override
+		protected Set<IRule<LabelPair, FilterState>> compute() {
+			if (this.reachable) {
+				return this.composition.composeReachable(
+					this.rules1, this.rules2, this.padded, this.states);
+			}
+			final Set<IRule<LabelPair, FilterState>> rules = 
+				this.composition.compose(this.rules1, this.rules2, 
+					this.padded);
+			this.states.addAll(statesInRules(rules));
+			return rules;
+		}
+
+		/**
+		 * States of the composed branch (reached states if only the 
+		 * reachable part is composed).
+		 */
+		Set<FilterState> states() {
+			return this.states;
+		}
+	}
+
+	/**
+	 * Builds the automaton resulting from a composition, once its rules have
+	 * been computed.
+	 */
+	private FilterAutomaton composedAutomaton(
+			final ActionAlphabet alphabet,
+			final RuleComposition composition,
+			final FilterAutomaton automaton1,
+			final FilterAutomaton automaton2,
+			final Set<FilterState> statesResult,
+			final Set<IRule<LabelPair, FilterState>> rulesDestResult, 
+			final Set<IRule<LabelPair, FilterState>> rulesPathResult, 
+			final Set<IRule<LabelPair, FilterState>> rulesPrefResult,
+			final Set<IRule<LabelPair, FilterState>> rulesComResult, 
+			final Set<IRule<LabelPair, FilterState>> rulesModResult,
+			final Set<IRule<LabelPair, FilterState>> rulesRootResult) {
+		final FilterState sinkResult = composition.productState(
+				automaton1.sinkState(), automaton2.sinkState());
 		statesResult.add(sinkResult);
 		// finalStates
 		Set<FilterState> finalStatesResult = new HashSet<FilterState>();
 		for (FilterState finalState1 : automaton1.getFinalStates()) {
 			for (FilterState finalState2 : automaton2.getFinalStates()) {
-				final FilterState candidate =
-					findInStates(finalState1, finalState2, statesResult);
-				if (candidate != null) {
+				final FilterState candidate = composition.findProductState(
+						finalState1, finalState2);
+				if (candidate != null && statesResult.contains(candidate)) {
 					finalStatesResult.add(candidate);
 				}
 			}
@@ -184,7 +493,7 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 				rulesRootResult);
 	}
 
-	private Set<FilterState> statesInRules(
+	private static Set<FilterState> statesInRules(
 			final Set<IRule<LabelPair,FilterState>> rules) {
 		Set<FilterState> states = new HashSet<FilterState>();
 		for (IRule<LabelPair, FilterState> rule : rules) {
@@ -193,88 +502,6 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 		}
 		return states;
 	}
-	
-
-	/**
-	 * Ugly fix to replace the test 
-	 * statesResult.contains(new FilterState(state1, state2))
-	 * The problem is that the embedding of FilterStates might differ, 
-	 * even between two pairs (state1,state2)...
-	 */
-	private FilterState findInStates(final FilterState state1, 
-		    final FilterState state2, final Set<FilterState> statesResult) {
-		FilterState result = null;
-		FilterState candidate = new FilterState(state1, state2);
-		final Iterator<FilterState> it = statesResult.iterator();
-		while (result == null && it.hasNext()) {
-			final FilterState state = it.next();
-			if (candidate.toString().equals(state.toString())) { // brrrr....
-				result = state;
-			}
-		}
-		return result;
-	}
-
-	/**
-	 * Computes the composition of two sets of rules
-	 * @param rules1 first set of rules
-	 * @param rules2 second set of rules
-	 * @return set of rules resulting from the composition
-	 */
-	private Set<IRule<LabelPair, FilterState>> computeCompositionRules(
-			final ActionAlphabet alphabet, 
-			final Set<IRule<LabelPair, FilterState>> rules1,
-			final Set<IRule<LabelPair, FilterState>> rules2) {
-		
-		Set<IRule<LabelPair, FilterState>> rulesResult = 
-			new HashSet<IRule<LabelPair, FilterState>>();
-		
-		for (IRule<LabelPair, FilterState> rule1 : rules1) {
-			for (IRule<LabelPair, FilterState> rule2 : rules2) {
-				if (rule1.label().right().equals(rule2.label().left()) && (
-						rule1.leftStates().size()== rule2.leftStates().size()||
-						rule1.leftStates().size()==0 && 
-							rule2.leftStates().size()==1||
-						rule1.leftStates().size()==1 && 
-							rule2.leftStates().size()==0)) {
-					List<FilterState> leftStatesResult = 
-						new ArrayList<FilterState>();
-					if (rule1.leftStates().size()==0 && 
-							rule2.leftStates().size()==1) {
-						leftStatesResult.add(new FilterState(
-								new FilterState("qDiamond"),
-								rule2.leftStates().get(0)));
-					} else if (rule1.leftStates().size()==1 && 
-							rule2.leftStates().size()==0) {
-						leftStatesResult.add(new FilterState(
-								rule1.leftStates().get(0),
-								new FilterState("qDiamond")));
-					} else {
-						for (int i=0;i<rule1.leftStates().size();i++) {
-							leftStatesResult.add(
-									new FilterState(rule1.leftStates().get(i),
-									rule2.leftStates().get(i)));
-						}
-					}
-					final LabelPair label = 
-						new LabelPair(
-								rule1.label().left(), rule2.label().right());
-					if (alphabet.arity(label)==leftStatesResult.size()) {
-						rulesResult.add(new BasicRule<LabelPair, FilterState>(
-								leftStatesResult, label,
-								new FilterState(rule1.rightState(),
-										rule2.rightState())));
-					} else if (alphabet.arity(label)==0)	{
-						rulesResult.add(new BasicRule<LabelPair, FilterState>(
-								new ArrayList<FilterState>(), label,
-								new FilterState(rule1.rightState(),
-										rule2.rightState())));
-					}
-				}
-			}
-		}
-		return this.cleanDiamondRules(alphabet, rulesResult);
-	}
 
 	/**
 	 * Efficient implementation of equivalence, for automata encoding filters.
@@ -297,6 +524,64 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 	public ITerm<LabelPair> separationRoute(final FilterAutomaton otherFilter){
 		return synthesizeSeparationTerm(otherFilter, true);
 	}
+
+	/**
+	 * Checks the equivalence of two filter automata, like 
+	 * {@link #equivalent(FilterAutomaton)}, with the given strategy.
+	 * @param otherFilter the other filter automaton to be compared with
+	 * @param strategy the way of checking the equivalence
+	 * @return true iff both filters are equivalent
+	 */
+	public boolean equivalent(final FilterAutomaton otherFilter,
+			final EquivalenceStrategy strategy) {
+		return separation(otherFilter, strategy, false)==null;
+	}
+
+	/**
+	 * Returns a pair (t,t') of routes proving that otherFilter is not 
+	 * equivalent to this filter, like {@link #separationRoute(FilterAutomaton)},
+	 * with the given strategy. The pair is the same for all strategies.
+	 * @param otherFilter the other filter automaton to be compared with
+	 * @param strategy the way of checking the equivalence
+	 * @return a pair (t,t') proving non-equivalence, or null oherwise.
+	 */
+	public ITerm<LabelPair> separationRoute(final FilterAutomaton otherFilter,
+			final EquivalenceStrategy strategy) {
+		return separation(otherFilter, strategy, true);
+	}
+
+	/**
+	 * Iterates lazily over pairs (t,t') proving non-equivalence, like 
+	 * separationRoute(otherFilter), all found by a single exploration of the
+	 * product. A pair is given for each pair of final states and each branch
+	 * whose images may differ, the other branches having the same images 
+	 * when possible.
+	 * @param otherFilter the other filter automaton to be compared with
+	 * @return the pairs (t,t') proving non-equivalence, none if both are 
+	 * equivalent
+	 */
+	public Iterator<ITerm<LabelPair>> separationRoutes(
+			final FilterAutomaton otherFilter) {
+		return new SeparationTermIterator(otherFilter);
+	}
+
+	private ITerm<LabelPair> separation(final FilterAutomaton otherFilter,
+			final EquivalenceStrategy strategy, final boolean computeSepTerm) {
+		if (strategy == EquivalenceStrategy.SMALLEST_ROUTE) {
+			return synthesizeSeparationTerm(otherFilter, computeSepTerm, 
+				computeSepTerm);
+		}
+		if (strategy == EquivalenceStrategy.UNION_FIND) {
+			final CongruenceEquivalence congruence = new CongruenceEquivalence(
+				new DiamondPadding(this), new DiamondPadding(otherFilter));
+			if (congruence.provesEquivalence()) {
+				return null;
+			}
+			// the difference may come from the classes: it is confirmed,
+			// and its separation term built, by the product
+		}
+		return synthesizeSeparationTerm(otherFilter, computeSepTerm);
+	}
 	
 	/**
 	 * Efficient implementation of equivalence, for automata encoding filters.
@@ -317,256 +602,654 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 	private ITerm<LabelPair> synthesizeSeparationTerm(
 			final FilterAutomaton otherFilter,
 			final boolean computeSepTerm) {
-		// the separation term is built by associating a term to each 
-		// equivalence term
-		ITerm<LabelPair> sepTerm = null;
-		Map<EquivalenceState,ITerm<LabelPair>> sepMap =
-			new HashMap<EquivalenceState,ITerm<LabelPair>>();
-		// first add diamond rules
-		final FilterAutomaton automaton1 = this.addDiamondRules();
-		final FilterAutomaton automaton2 = otherFilter.addDiamondRules();
-		// then look for a counterexample to equivalence
-		Set<EquivalenceState> agenda = new HashSet<EquivalenceState>();
-		boolean equivalent = true;
-		Set<EquivalenceState> reachedStates = 
-			reachedStatesAtLeaves(
-				automaton1, automaton2, computeSepTerm, sepMap);
-		agenda.addAll(reachedStates);
-		while (equivalent && !agenda.isEmpty()) {
-			final EquivalenceState state = agenda.iterator().next();
-			agenda.remove(state);
-			for (IRule<LabelPair,FilterState> rule1 : 
-				automaton1.getRulesUsingLeftState(state.filterState1())) {
-				for (IRule<LabelPair,FilterState> rule2 :
-					automaton2.getRulesUsingLeftState(state.filterState2())) {
-					final EquivalenceState equivState = 
-						equivalenceStateForRules(rule1, rule2, 
-							automaton1, automaton2, reachedStates,
-							computeSepTerm, sepMap);
-					if (equivState != null) {
-						reachedStates.add(equivState);
-						agenda.add(equivState);
-						if (equivState.differs()) {
-							equivalent = !equivState
-								.provesNonEquiv(automaton1, automaton2);
-							if (computeSepTerm && !equivalent) {
-								sepTerm = sepMap.get(equivState);
-							}
-						}
-					}
-				}
-			}
+		return synthesizeSeparationTerm(otherFilter, computeSepTerm, false);
+	}
+
+	/**
+	 * Same as synthesizeSeparationTerm(otherFilter, computeSepTerm), where 
+	 * if smallest is true, the returned tree is a smallest one.
+	 */
+	private ITerm<LabelPair> synthesizeSeparationTerm(
+			final FilterAutomaton otherFilter,
+			final boolean computeSepTerm, final boolean smallest) {
+		// the diamond rules are given by views on both automata; then look
+		// for a counterexample to equivalence, by saturation: each pair of
+		// rules waits for the pairs of its left states
+		final Saturation saturation = new Saturation(new DiamondPadding(this),
+			new DiamondPadding(otherFilter), computeSepTerm, smallest, false);
+		saturation.reachLeaves();
+		if (!saturation.run()) {
+			return null;
 		}
-		if (!equivalent && !computeSepTerm) {
-			// a dummy non-null term
-			sepTerm = new Term<LabelPair>(
-				this.getAlphabet(),
-				new ArrayList<ITerm<LabelPair>>(), 
-				ActionAlphabet.REJREJ);
+		if (computeSepTerm) {
+			return saturation.proofTerm();
 		}
-		return sepTerm;
+		// a dummy non-null term
+		return new Term<LabelPair>(
+			this.getAlphabet(),
+			new ArrayList<ITerm<LabelPair>>(), 
+			ActionAlphabet.REJREJ);
 	}
 
 	/**
-	 * Returns an EquivalenceState (q,p,v) when given two matching automata 
-	 * rules. This is the case when rules are:<br/>
+	 * Saturation of the pairs of states (q,p) reached by the product of two 
+	 * automata, with a truth value v telling whether the images differ. Two
+	 * rules
 	 * 
 	 * (q1,...,qn) -- (a,b) --> q <br/>
 	 * (p1,...,pn) -- (a,c) --> p <br/>
 	 * 
-	 * and all (q1,p1),...,(qn,pn) are in reachedStates but not (q,p). The
-	 * truth value of v is given by (b different from c) or ((qi,pi,false) is 
-	 * in the reachedStates for some i).
-	 * If this EquivalenceState (q,p,v) is such that v==false and (q,p,v) is 
-	 * already in reachedStates, then returns null.
-	 */
-	private EquivalenceState equivalenceStateForRules(
-			final IRule<LabelPair,FilterState> rule1,
-			final IRule<LabelPair,FilterState> rule2,
-			final FilterAutomaton automaton1,
-			final FilterAutomaton automaton2,
-			final Set<EquivalenceState> reachedStates,
-			final boolean computeSepTerm,
-			Map<EquivalenceState,ITerm<LabelPair>> sepMap) {
-
-		EquivalenceState equivState = null;
-		final EquivalenceState newReachedDiff =
-			new EquivalenceState(rule1.rightState(),rule2.rightState(),true);								
-		final EquivalenceState newReachedNoDiff =
-			new EquivalenceState(rule1.rightState(),rule2.rightState(),false);
-		final int arity = automaton1.getAlphabet().arity(rule1.label());
-		final boolean rightDiff = 
-			!rule1.label().right().equals(rule2.label().right());
-		if (rule2.label().left().equals(rule1.label().left())
-			&& automaton2.getAlphabet().arity(rule2.label())==arity
-			&& (!reachedStates.contains(newReachedDiff))) {
-			// check whether all states on the left-hand side have been reached
-			// so far
-			boolean match = true;
-			boolean leftDiff = false;
-			List<ITerm<LabelPair>> sepTermChildren = 
-				new ArrayList<ITerm<LabelPair>>();
-			int i = 0;
-			while (i<arity && match) {
-				final EquivalenceState qNoDiff =
-					new EquivalenceState(rule1.leftStates().get(i),
-							rule2.leftStates().get(i), false);
-				final EquivalenceState qDiff =
-					new EquivalenceState(rule1.leftStates().get(i),
-							rule2.leftStates().get(i), true);
-				match &= reachedStates.contains(qNoDiff) ||
-					reachedStates.contains(qDiff);
-				leftDiff |= reachedStates.contains(qDiff);
-				if (computeSepTerm && match) {
-					if (reachedStates.contains(qDiff)) {
-						sepTermChildren.add(sepMap.get(qDiff));
-					} else {
-						sepTermChildren.add(sepMap.get(qNoDiff));						
+	 * are joined once, when one of the pairs (qi,pi) is first reached, and 
+	 * then wait for the n pairs (qi,pi): each pair decrements a counter, and
+	 * the rules fire when the counter is zero. Then (q,p,v) is reached, where
+	 * v is true iff b differs from c or some (qi,pi,true) is reached. If 
+	 * (qi,pi,true) is reached after the rules fired, they fire again.
+	 * <p>
+	 * States are given ids, and reached pairs are kept in a primitive table 
+	 * (see {@link ReachedPairs}), so that firing rules allocates nothing. 
+	 * When the separation term is requested, each reached pair only records
+	 * how it was reached, and the term is rebuilt once at the end.
+	 * <p>
+	 * To find a smallest separation term, the pairs are reached by 
+	 * increasing size of their smallest tree, as in Knuth's generalization
+	 * of Dijkstra's algorithm: the rules offer candidate trees, and the 
+	 * smallest candidate is taken first. Since a tree is larger than its 
+	 * children, the size of a pair is known when it is taken.
+	 * <p>
+	 * To enumerate separation terms, the saturation goes on after a proof:
+	 * a proof is kept for each pair of final states and each child of the
+	 * root which can be reached with different images, the other children
+	 * having the same images when possible.
+	 */
+	private final class Saturation {
+
+		private final DiamondPadding padded1;
+		private final DiamondPadding padded2;
+		private final boolean computeSepTerm;
+		private final Map<FilterState,Integer> ids1 = 
+			new HashMap<FilterState,Integer>();
+		private final Map<FilterState,Integer> ids2 = 
+			new HashMap<FilterState,Integer>();
+		private final List<FilterState> states1 = new ArrayList<FilterState>();
+		private final List<FilterState> states2 = new ArrayList<FilterState>();
+		private final BitSet finals1 = new BitSet();
+		private final BitSet finals2 = new BitSet();
+		private final ReachedPairs reached = new ReachedPairs();
+		// rules waiting for a pair of states
+		private final LongIntHashMap waitingIndex = new LongIntHashMap();
+		private final List<List<RulePair>> waiting = 
+			new ArrayList<List<RulePair>>();
+		private final Map<RulePair,RulePair> rulePairs = 
+			new HashMap<RulePair,RulePair>();
+		// how the reached pairs were reached, with the same or different 
+		// images (indexes in origins)
+		private final LongIntHashMap sameOrigins;
+		private final LongIntHashMap differentOrigins;
+		private final List<Origin> origins = new ArrayList<Origin>();
+		// reached pairs to process, the highest bit telling whether images 
+		// differ
+		private long[] agenda = new long[64];
+		private int agendaHead = 0;
+		private int agendaTail = 0;
+		private long proof = -1;
+		// when enumerating: proofs, and sets of children of the root with
+		// different images already proved, by pair of final states
+		private final boolean enumerate;
+		private final List<Origin> proofs = new ArrayList<Origin>();
+		private int nextProof = 0;
+		private final Map<Long,BitSet> provedChildren = 
+			new HashMap<Long,BitSet>();
+		private final Map<Origin,ITerm<LabelPair>> built = 
+			new HashMap<Origin,ITerm<LabelPair>>();
+		// when looking for a smallest term: candidates, and sizes of the 
+		// smallest trees of the reached pairs
+		private final boolean smallest;
+		private final PriorityQueue<Candidate> candidates;
+		private final LongIntHashMap sameSizes;
+		private final LongIntHashMap differentSizes;
+
+		Saturation(final DiamondPadding padded1, 
+				final DiamondPadding padded2, final boolean computeSepTerm,
+				final boolean smallest, final boolean enumerate) {
+			this.padded1 = padded1;
+			this.padded2 = padded2;
+			this.computeSepTerm = computeSepTerm;
+			this.smallest = smallest;
+			this.enumerate = enumerate;
+			this.candidates = smallest ? new PriorityQueue<Candidate>() : null;
+			this.sameSizes = smallest ? new LongIntHashMap() : null;
+			this.differentSizes = smallest ? new LongIntHashMap() : null;
+			this.sameOrigins = computeSepTerm ? new LongIntHashMap() : null;
+			this.differentOrigins = computeSepTerm ? 
+				new LongIntHashMap() : null;
+		}
+
+		/**
+		 * Reaches the pairs of states for symbols of arity 0.
+		 */
+		void reachLeaves() {
+			final FilterAutomaton automaton1 = this.padded1.automaton();
+			final FilterAutomaton automaton2 = this.padded2.automaton();
+			for (LabelPair leafLabel1 : 
+				automaton1.getAlphabet().getSymbolsOfArity(0)) {
+				for (IRule<LabelPair, FilterState> rule1 : 
+					this.padded1.rulesWithLabel(leafLabel1)) {
+					for (LabelPair leafLabel2 : 
+						automaton2.getAlphabet().getSymbolsOfArity(0)) {
+						if (leafLabel1.left().equals(leafLabel2.left())) {
+							for (IRule<LabelPair, FilterState> rule2 : 
+								this.padded2.rulesWithLabel(leafLabel2)) {
+								final long pair = ReachedPairs.pair(
+									id(rule1.rightState(), true), 
+									id(rule2.rightState(), false));
+								final boolean differs = 
+									!leafLabel1.right().equals(
+										leafLabel2.right());
+								if (this.smallest) {
+									offer(pair, differs, 1, 
+										new Origin(leafLabel1, null, 0));
+									continue;
+								}
+								if (this.reached.contains(pair, differs)) {
+									continue;
+								}
+								if (this.computeSepTerm) {
+									record(pair, differs, 
+										new Origin(leafLabel1, null, 0));
+								}
+								reach(pair, differs);
+							}
+						}
 					}
 				}
-				i++;
 			}
-			if (match) {
-				if (leftDiff || rightDiff) {
-					equivState = newReachedDiff;
+		}
+
+		/**
+		 * Returns true iff a pair of states proving non-equivalence is 
+		 * reached. When enumerating, returns true iff a new proof is found,
+		 * and can be called again to go on.
+		 */
+		boolean run() {
+			while (this.proof < 0 && this.nextProof == this.proofs.size()) {
+				if (this.agendaHead == this.agendaTail && 
+						!(this.smallest && takeCandidate())) {
+					break;
+				}
+				if (this.proof >= 0 || this.nextProof < this.proofs.size()) {
+					break;
+				}
+				final long event = this.agenda[this.agendaHead++];
+				final long pair = event & Long.MAX_VALUE;
+				final int index = this.waitingIndex.get(pair, -1);
+				if (index < 0) {
+					join(pair);
 				} else {
-					if (!reachedStates.contains(newReachedNoDiff)) {
-						equivState = newReachedNoDiff;
+					// (q,p,true) reached after (q,p,false)
+					for (RulePair rulePair : this.waiting.get(index)) {
+						if (rulePair.pending == 0) {
+							fire(rulePair);
+						}
 					}
 				}
-				if (computeSepTerm && equivState != null) {
-					sepMap.put(equivState,
-						new Term<LabelPair>(this.actionAlphabet, 
-							sepTermChildren, rule1.label()));
+			}
+			return this.proof >= 0 || this.nextProof < this.proofs.size();
+		}
+
+		/**
+		 * Reaches the smallest candidate whose pair is not reached yet.
+		 * @return false if there is no such candidate
+		 */
+		private boolean takeCandidate() {
+			Candidate candidate = this.candidates.poll();
+			while (candidate != null && 
+					this.reached.contains(candidate.pair, candidate.differs)) {
+				candidate = this.candidates.poll();
+			}
+			if (candidate == null) {
+				return false;
+			}
+			(candidate.differs ? this.differentSizes : this.sameSizes)
+				.put(candidate.pair, candidate.size, -1);
+			if (this.computeSepTerm) {
+				record(candidate.pair, candidate.differs, candidate.origin);
+			}
+			reach(candidate.pair, candidate.differs);
+			return true;
+		}
+
+		private void offer(final long pair, final boolean differs, 
+				final int size, final Origin origin) {
+			if (!this.reached.contains(pair, differs)) {
+				this.candidates.add(
+					new Candidate(pair, differs, size, origin));
+			}
+		}
+
+		/**
+		 * Offers the smallest trees built by two rules whose left states are
+		 * all reached, with the same images or not.
+		 */
+		private void offerCandidates(final RulePair rulePair) {
+			final LabelPair label = rulePair.rule1.label();
+			final boolean rightDiff = 
+				!label.right().equals(rulePair.rule2.label().right());
+			final int arity = rulePair.ids1.length;
+			// sum of the sizes of the children, with the same images only,
+			// and with the smallest trees of the children
+			int sameSize = 1;
+			int smallestSize = 1;
+			int smallestMask = 0;
+			// smallest extra size to get a child with different images
+			int extra = Integer.MAX_VALUE;
+			int extraChild = -1;
+			for (int i=0; i<arity; i++) {
+				final long child = 
+					ReachedPairs.pair(rulePair.ids1[i], rulePair.ids2[i]);
+				final int same = this.sameSizes.get(child, -1);
+				final int different = this.differentSizes.get(child, -1);
+				sameSize = same < 0 || sameSize < 0 ? -1 : sameSize + same;
+				int size = same;
+				if (different >= 0 && (same < 0 || different <= same)) {
+					size = different;
+					smallestMask |= 1 << i;
+				}
+				smallestSize += size;
+				if (different >= 0 && different - size < extra) {
+					extra = different - size;
+					extraChild = i;
 				}
 			}
+			if (!rightDiff && sameSize > 0) {
+				offer(rulePair.right, false, sameSize, 
+					new Origin(label, rulePair, 0));
+			}
+			if (rightDiff) {
+				offer(rulePair.right, true, smallestSize, 
+					new Origin(label, rulePair, smallestMask));
+			} else if (extraChild >= 0) {
+				offer(rulePair.right, true, smallestSize + extra, 
+					new Origin(label, rulePair, 
+						smallestMask | (1 << extraChild)));
+			}
 		}
-		return equivState;
-	}
-	
-	/**
-	 * Builds the set of EquivalenceState reached for symbols of arity 0.
-	 */
-	private Set<EquivalenceState> reachedStatesAtLeaves(
-			final FilterAutomaton automaton1, 
-			final FilterAutomaton automaton2,
-			final boolean computeSeparationTerm,
-			Map<EquivalenceState,ITerm<LabelPair>> separationMap) {
-		Set<EquivalenceState> reached = new HashSet<EquivalenceState>();
-		for (LabelPair leafLabel1 : 
-			automaton1.getAlphabet().getSymbolsOfArity(0)) {
-			for (IRule<LabelPair, FilterState> rule1 : 
-				automaton1.getRulesWithLabel(leafLabel1, false)) {
-				for (LabelPair leafLabel2 : 
-					automaton2.getAlphabet().getSymbolsOfArity(0)) {
-					if (leafLabel1.left().equals(leafLabel2.left())) {
-						for (IRule<LabelPair, FilterState> rule2 : 
-							automaton2.getRulesWithLabel(leafLabel2, false)) {
-							EquivalenceState eqState = new EquivalenceState(
-									rule1.rightState(), rule2.rightState(), 
-									!leafLabel1.right().equals(
-										leafLabel2.right()));
-							reached.add(eqState);
-							if (computeSeparationTerm) {
-							separationMap.put(eqState, 
-								new Term<LabelPair>(
-									automaton1.getAlphabet(), 
-									new ArrayList<ITerm<LabelPair>>(), 
-									leafLabel1));
+
+		/**
+		 * Returns a tree (t,t') proving non-equivalence.
+		 */
+		ITerm<LabelPair> proofTerm() {
+			if (this.enumerate) {
+				return term(this.proofs.get(this.nextProof++));
+			}
+			return term(this.proof, true);
+		}
+
+		/**
+		 * Rebuilds the term reaching a pair, from the origins of the pairs.
+		 * The origins are recorded when pairs are first reached, so that the
+		 * origins of the children were recorded before.
+		 */
+		private ITerm<LabelPair> term(final long pair, final boolean differs) {
+			return term(this.origins.get((differs ? 
+				this.differentOrigins : this.sameOrigins).get(pair, -1)));
+		}
+
+		private ITerm<LabelPair> term(final Origin origin) {
+			ITerm<LabelPair> term = this.built.get(origin);
+			if (term != null) {
+				return term;
+			}
+			final RulePair rulePair = origin.rulePair;
+			List<ITerm<LabelPair>> children = 
+				new ArrayList<ITerm<LabelPair>>();
+			if (rulePair != null) {
+				for (int i=0; i<rulePair.ids1.length; i++) {
+					children.add(term(
+						ReachedPairs.pair(rulePair.ids1[i], rulePair.ids2[i]),
+						(origin.differentChildren & (1 << i)) != 0));
+				}
+			}
+			term = new Term<LabelPair>(FilterAutomaton.this.actionAlphabet, 
+				children, origin.label);
+			this.built.put(origin, term);
+			return term;
+		}
+
+		private void record(final long pair, final boolean differs, 
+				final Origin origin) {
+			(differs ? this.differentOrigins : this.sameOrigins)
+				.put(pair, this.origins.size(), -1);
+			this.origins.add(origin);
+		}
+
+		private void reach(final long pair, final boolean differs) {
+			if (!this.reached.add(pair, differs)) {
+				return;
+			}
+			if (this.agendaTail == this.agenda.length) {
+				final long[] agenda = new long[2*this.agenda.length];
+				System.arraycopy(this.agenda, this.agendaHead, agenda, 0, 
+					this.agendaTail - this.agendaHead);
+				this.agendaTail -= this.agendaHead;
+				this.agendaHead = 0;
+				this.agenda = agenda;
+			}
+			this.agenda[this.agendaTail++] = 
+				differs ? pair | Long.MIN_VALUE : pair;
+			if (differs && !this.enumerate && isFinal(pair)) {
+				this.proof = pair;
+			}
+		}
+
+		private boolean isFinal(final long pair) {
+			return this.finals1.get(ReachedPairs.id1(pair)) &&
+				this.finals2.get(ReachedPairs.id2(pair));
+		}
+
+		/**
+		 * Keeps proofs for two rules reaching a pair of final states: the 
+		 * children are taken with the same images when possible, and then 
+		 * each child which can differ is taken with different images.
+		 */
+		private void prove(final RulePair rulePair) {
+			final LabelPair label = rulePair.rule1.label();
+			// children only reached with different images, and children
+			// reached with different images
+			int forced = 0;
+			int different = 0;
+			for (int i=0; i<rulePair.ids1.length; i++) {
+				final long child = 
+					ReachedPairs.pair(rulePair.ids1[i], rulePair.ids2[i]);
+				if (!this.reached.contains(child, false)) {
+					forced |= 1 << i;
+				}
+				if (this.reached.contains(child, true)) {
+					different |= 1 << i;
+				}
+			}
+			if (forced != 0 || 
+					!label.right().equals(rulePair.rule2.label().right())) {
+				prove(rulePair, forced);
+			}
+			for (int i=0; i<rulePair.ids1.length; i++) {
+				if ((different & ~forced & (1 << i)) != 0) {
+					prove(rulePair, forced | (1 << i));
+				}
+			}
+		}
+
+		private void prove(final RulePair rulePair, 
+				final int differentChildren) {
+			BitSet proved = this.provedChildren.get(rulePair.right);
+			if (proved == null) {
+				proved = new BitSet();
+				this.provedChildren.put(rulePair.right, proved);
+			}
+			if (!proved.get(differentChildren)) {
+				proved.set(differentChildren);
+				this.proofs.add(new Origin(
+					rulePair.rule1.label(), rulePair, differentChildren));
+			}
+		}
+
+		/**
+		 * Joins the rules using a pair of states, when it is first reached.
+		 */
+		private void join(final long pair) {
+			final List<RulePair> waitingRules = new ArrayList<RulePair>();
+			this.waitingIndex.put(pair, this.waiting.size(), -1);
+			this.waiting.add(waitingRules);
+			final int id1 = ReachedPairs.id1(pair);
+			final int id2 = ReachedPairs.id2(pair);
+			final FilterState state1 = this.states1.get(id1);
+			final FilterState state2 = this.states2.get(id2);
+			for (IRule<LabelPair,FilterState> rule1 : 
+				this.padded1.rulesUsingLeftState(state1)) {
+				final int arity = rule1.leftStates().size();
+				for (IRule<LabelPair,FilterState> rule2 :
+					this.padded2.rulesUsingLeftState(state2)) {
+					if (rule2.leftStates().size() != arity ||
+						!rule1.label().left().equals(rule2.label().left())) {
+						continue;
+					}
+					final RulePair rulePair = rulePair(rule1, rule2);
+					boolean waits = false;
+					for (int i=0; i<arity; i++) {
+						if (rulePair.ids1[i] == id1 && 
+								rulePair.ids2[i] == id2) {
+							waits = true;
+							rulePair.pending--;
+						}
+					}
+					if (waits) {
+						waitingRules.add(rulePair);
+						if (rulePair.pending == 0) {
+							fire(rulePair);
+							if (this.proof >= 0) {
+								return;
 							}
 						}
 					}
 				}
 			}
 		}
-		return reached;
+
+		private RulePair rulePair(final IRule<LabelPair,FilterState> rule1,
+				final IRule<LabelPair,FilterState> rule2) {
+			final RulePair key = new RulePair(rule1, rule2);
+			final RulePair rulePair = this.rulePairs.get(key);
+			if (rulePair != null) {
+				return rulePair;
+			}
+			final int arity = rule1.leftStates().size();
+			key.ids1 = new int[arity];
+			key.ids2 = new int[arity];
+			for (int i=0; i<arity; i++) {
+				key.ids1[i] = id(rule1.leftStates().get(i), true);
+				key.ids2[i] = id(rule2.leftStates().get(i), false);
+			}
+			key.right = ReachedPairs.pair(id(rule1.rightState(), true),
+				id(rule2.rightState(), false));
+			key.pending = arity;
+			this.rulePairs.put(key, key);
+			return key;
+		}
+
+		/**
+		 * Reaches the right states of two rules whose left states are all 
+		 * reached.
+		 */
+		private void fire(final RulePair rulePair) {
+			if (this.smallest) {
+				offerCandidates(rulePair);
+				return;
+			}
+			if (this.enumerate && isFinal(rulePair.right)) {
+				prove(rulePair);
+			}
+			if (this.reached.contains(rulePair.right, true)) {
+				return;
+			}
+			final IRule<LabelPair,FilterState> rule1 = rulePair.rule1;
+			final IRule<LabelPair,FilterState> rule2 = rulePair.rule2;
+			boolean diff = !rule1.label().right().equals(rule2.label().right());
+			final int arity = rulePair.ids1.length;
+			for (int i=0; i<arity && !diff; i++) {
+				diff = this.reached.contains(ReachedPairs.pair(
+					rulePair.ids1[i], rulePair.ids2[i]), true);
+			}
+			if (!diff && this.reached.contains(rulePair.right, false)) {
+				return;
+			}
+			if (this.computeSepTerm) {
+				int differentChildren = 0;
+				for (int i=0; i<arity; i++) {
+					if (this.reached.contains(ReachedPairs.pair(
+							rulePair.ids1[i], rulePair.ids2[i]), true)) {
+						differentChildren |= 1 << i;
+					}
+				}
+				record(rulePair.right, diff, 
+					new Origin(rule1.label(), rulePair, differentChildren));
+			}
+			reach(rulePair.right, diff);
+		}
+
+		/**
+		 * Id of a state of the first or of the second automaton.
+		 */
+		private int id(final FilterState state, final boolean first) {
+			final Map<FilterState,Integer> ids = first ? this.ids1 : this.ids2;
+			Integer id = ids.get(state);
+			if (id == null) {
+				id = ids.size();
+				ids.put(state, id);
+				(first ? this.states1 : this.states2).add(state);
+				final FilterAutomaton automaton = first ? 
+					this.padded1.automaton() : this.padded2.automaton();
+				if (automaton.getFinalStates().contains(state)) {
+					(first ? this.finals1 : this.finals2).set(id);
+				}
+			}
+			return id;
+		}
 	}
 
 	/**
-	 * Class encoding a state used when testing equivalence.
+	 * Iterates over separation terms, each one found by going on with the
+	 * same saturation.
 	 */
-	protected class EquivalenceState implements IState {
-		private final FilterState filterState1;
-		private final FilterState filterState2;
-		private final boolean differs;
-		
-		public EquivalenceState(final FilterState fState1, 
-				final FilterState fState2, final boolean different) {
-			this.filterState1 = fState1;
-			this.filterState2 = fState2;
-			this.differs = different;
+	private final class SeparationTermIterator 
+			implements Iterator<ITerm<LabelPair>> {
+
+		private final Saturation saturation;
+		private ITerm<LabelPair> next = null;
+
+		SeparationTermIterator(final FilterAutomaton otherFilter) {
+			this.saturation = new Saturation(
+				new DiamondPadding(FilterAutomaton.this), 
+				new DiamondPadding(otherFilter), true, false, true);
+			this.saturation.reachLeaves();
+			advance();
 		}
-		
-		public FilterState filterState1() {	return this.filterState1; }
-		public FilterState filterState2() {	return this.filterState2; }
-		public boolean differs() { return this.differs; }
-		
-		/**
-		 * True iff it proves non-equivalence of two automata.
-		 */
-		public boolean provesNonEquiv(final FilterAutomaton automaton1, 
-				final FilterAutomaton automaton2) {
-			return automaton1.getFinalStates().contains(filterState1)
-				&& automaton2.getFinalStates().contains(filterState2)
-				&& differs;
+
+		@Override
+		public boolean hasNext() {
+			return this.next != null;
 		}
-		
-		public String toString() {
-			StringBuffer sb = new StringBuffer();
-			sb.append("(").append(filterState1.toString());
-			sb.append(",").append(filterState2.toString());
-			sb.append(")").append(differs?"x":"v");
-			return sb.toString();
+
+		@Override
+		public ITerm<LabelPair> next() {
+			if (this.next == null) {
+				throw new NoSuchElementException();
+			}
+			final ITerm<LabelPair> current = this.next;
+			advance();
+			return current;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void advance() {
+			this.next = this.saturation.run() ? 
+				this.saturation.proofTerm() : null;
+		}
+	}
+
+	/**
+	 * A tree reaching a pair of states, given by its size and its origin.
+	 */
+	private static final class Candidate implements Comparable<Candidate> {
+		final long pair;
+		final boolean differs;
+		final int size;
+		final Origin origin;
+
+		Candidate(final long pair, final boolean differs, final int size,
+				final Origin origin) {
+			this.pair = pair;
+			this.differs = differs;
+			this.size = size;
+			this.origin = origin;
+		}
+
+		public int compareTo(final Candidate other) {
+			return this.size < other.size ? -1 : 
+				(this.size == other.size ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Back-pointer from a reached pair of states to the leaf or to the rules
+	 * reaching it, telling which pairs of left states were reached with 
+	 * different images.
+	 */
+	private static final class Origin {
+		final LabelPair label;
+		final RulePair rulePair;
+		final int differentChildren;
+
+		Origin(final LabelPair label, final RulePair rulePair,
+				final int differentChildren) {
+			this.label = label;
+			this.rulePair = rulePair;
+			this.differentChildren = differentChildren;
+		}
+	}
+
+	/**
+	 * Two rules reading the same input, with the ids of their states, and 
+	 * the number of pairs of their left states which are not reached yet.
+	 */
+	private static final class RulePair {
+		final IRule<LabelPair,FilterState> rule1;
+		final IRule<LabelPair,FilterState> rule2;
+		int[] ids1;
+		int[] ids2;
+		long right;
+		int pending;
+
+		RulePair(final IRule<LabelPair,FilterState> rule1,
+				final IRule<LabelPair,FilterState> rule2) {
+			this.rule1 = rule1;
+			this.rule2 = rule2;
 		}
 
 		@Override
 		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + getOuterType().hashCode();
-			result = prime * result + (differs ? 1231 : 1237);
-			result = prime * result
-					+ ((filterState1 == null) ? 0 : filterState1.hashCode());
-			result = prime * result
-					+ ((filterState2 == null) ? 0 : filterState2.hashCode());
-			return result;
+			return 31 * this.rule1.hashCode() + this.rule2.hashCode();
 		}
 
 		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof RulePair)) {
 				return false;
-			EquivalenceState other = (EquivalenceState) obj;
-			if (!getOuterType().equals(other.getOuterType()))
-				return false;
-			if (differs != other.differs)
-				return false;
-			if (filterState1 == null) {
-				if (other.filterState1 != null)
-					return false;
-			} else if (!filterState1.equals(other.filterState1))
-				return false;
-			if (filterState2 == null) {
-				if (other.filterState2 != null)
-					return false;
-			} else if (!filterState2.equals(other.filterState2))
-				return false;
-			return true;
+			}
+			final RulePair other = (RulePair) obj;
+			return this.rule1.equals(other.rule1) && 
+				this.rule2.equals(other.rule2);
 		}
+	}
 
-		private FilterAutomaton getOuterType() {
-			return FilterAutomaton.this;
-		}
-		
+	/**
+	 * True iff the automaton, padded with the rules allowing pairs of 
+	 * diamonds below the leaves, accepts the given route, eg. a separating
+	 * route. The padding is done on the fly, without copying the automaton.
+	 * @param route the route, with its transformation
+	 * @return true iff the padded automaton accepts the route
+	 */
+	public final boolean acceptsWithDiamonds(final ITerm<LabelPair> route) {
+		return new DiamondPadding(this).accepts(route);
 	}
-	
+
 	/**
-	 * Adds the rules allowing pairs of diamond to the leaves	 
-	 * @param automaton the automata where diamond-rules should be added
+	 * Adds the rules allowing pairs of diamond to the leaves. This copies 
+	 * the automaton, and is only kept to check the padding done on the fly
+	 * by the composition: use {@link #acceptsWithDiamonds(ITerm)} to test 
+	 * whether a route is accepted.
 	 * @return the automaton with diamond-rules added
 	 */
 	public final FilterAutomaton addDiamondRules() {
@@ -586,74 +1269,52 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 		states.add(qDiamond);
 		
 		// rules
-		Set<IRule<LabelPair,FilterState>> rulesComD = 
-			new HashSet<IRule<LabelPair,FilterState>>();
-		Set<IRule<LabelPair,FilterState>> rulesPathD = 
-			new HashSet<IRule<LabelPair,FilterState>>();
-		
-		rulesComD.addAll(this.getRulesCom());
-		rulesPathD.addAll(this.getRulesPath());
-		
-		final BasicRule<LabelPair, FilterState> firstRuleToAdd = 
-			new BasicRule<LabelPair,FilterState>(
-				ActionAlphabet.DIAMONDDIAMOND, qDiamond); 
-		final BasicRule<LabelPair, FilterState> secondRuleToAdd = 
-			new BasicRule<LabelPair,FilterState>(
-				ActionAlphabet.DIAMONDDIAMOND1, qDiamond, qDiamond);
-		
-		rulesPathD.add(firstRuleToAdd);
-		rulesComD.add(firstRuleToAdd);
-		
-		rulesPathD.add(secondRuleToAdd);
-		rulesComD.add(secondRuleToAdd);
-		
-		for (IRule<LabelPair,FilterState> initialRule: 
-			this.getInitialRulesCom()) {
-			final FilterState rightState = initialRule.rightState();
-			final LabelPair labelArityOne = 
-				new UnaryVersionLabelPair(initialRule.label());
-			rulesComD.add(new BasicRule<LabelPair,FilterState>(
-				labelArityOne, rightState, qDiamond));
-		}
-		
-		for(IRule<LabelPair,FilterState> initialRule: 
-			this.getInitialRulesPath()){
-			final FilterState rightState = initialRule.rightState();
-			final LabelPair labelArityOne = 
-				new UnaryVersionLabelPair(initialRule.label());
-			rulesPathD.add(new BasicRule<LabelPair,FilterState>(
-				labelArityOne, rightState, qDiamond));
-		}
+		final Set<IRule<LabelPair,FilterState>> rulesComD = 
+			branchWithDiamondRules(this.getRulesCom(), qDiamond);
+		final Set<IRule<LabelPair,FilterState>> rulesPathD = 
+			branchWithDiamondRules(this.getRulesPath(), qDiamond);
 		return new FilterAutomaton(
 			alphabet, states, finalStates, sink, rulesDestD, rulesPathD, 
 			rulesPrefD, rulesComD, rulesModD, rulesRootD);
 	}
 
 	/**
-	 * Removes the rules allowing (diamond,diamond) labels below leaves.
+	 * Adds the rules allowing pairs of diamond to the leaves of a branch.
+	 */
+	private static Set<IRule<LabelPair,FilterState>> branchWithDiamondRules(
+			final Set<IRule<LabelPair,FilterState>> branchRules,
+			final FilterState qDiamond) {
+		final IdentityBranch identity = IdentityBranch.of(branchRules);
+		if (identity != null) {
+			return identity.withDiamondRules(qDiamond);
+		}
+		Set<IRule<LabelPair,FilterState>> rulesD = 
+			new HashSet<IRule<LabelPair,FilterState>>();
+		rulesD.addAll(branchRules);
+		rulesD.add(new BasicRule<LabelPair,FilterState>(
+				ActionAlphabet.DIAMONDDIAMOND, qDiamond));
+		rulesD.add(new BasicRule<LabelPair,FilterState>(
+				ActionAlphabet.DIAMONDDIAMOND1, qDiamond, qDiamond));
+		for (IRule<LabelPair,FilterState> initialRule : branchRules) {
+			if (initialRule.leftStates().size()==0) {
+				final LabelPair labelArityOne = 
+					new UnaryVersionLabelPair(initialRule.label());
+				rulesD.add(new BasicRule<LabelPair,FilterState>(
+					labelArityOne, initialRule.rightState(), qDiamond));
+			}
+		}
+		return rulesD;
+	}
+
+	/**
+	 * Removes the rules allowing (diamond,diamond) labels below leaves. Like
+	 * {@link #addDiamondRules()}, this is only kept to check the composition 
+	 * against rules composed pairwise.
 	 */
 	public final Set<IRule<LabelPair, FilterState>> cleanDiamondRules(
 			final ActionAlphabet alphabet, 
 			final Set<IRule<LabelPair, FilterState>> rules) {
-		Set<IRule<LabelPair, FilterState>> rulesResult = 
-			new HashSet<IRule<LabelPair, FilterState>>();
-		
-		for (IRule<LabelPair, FilterState> rule : rules) {
-			if (!rule.label().equals(ActionAlphabet.DIAMONDDIAMOND) && 
-				!rule.label().equals(ActionAlphabet.DIAMONDDIAMOND1)) {
-				if (rule.label() instanceof UnaryVersionLabelPair) {
-					final LabelPair label0 = 
-						((UnaryVersionLabelPair)rule.label())
-						.getBooleanVersion();
-					rulesResult.add(new BasicRule<LabelPair, FilterState>(
-						new ArrayList<FilterState>(), 
-						label0,rule.rightState()));								
-				} else{
-					rulesResult.add(rule);
-				}
-			}
-		}
-		return rulesResult;
+		return RuleComposition.cleanDiamondRules(rules);
 	}
 	
 	/**
@@ -662,23 +1323,17 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 	public final FilterAutomaton cleanInaccessibleStates() {
 		// we have to clean by branch, so we build an NTA for each branch,
 		// clean it, and then rebuild a FilterAutomaton.
-		final INTA<LabelPair,FilterState> destNta = 
-			ntaForBranch(this.rulesDest).cleanInaccessibleStates();
-		final INTA<LabelPair,FilterState> pathNta = 
-			ntaForBranch(this.rulesPath).cleanInaccessibleStates();
-		final INTA<LabelPair,FilterState> prefNta = 
-			ntaForBranch(this.rulesPref).cleanInaccessibleStates();
-		final INTA<LabelPair,FilterState> comNta = 
-			ntaForBranch(this.rulesCom).cleanInaccessibleStates();
-		final INTA<LabelPair,FilterState> modNta = 
-			ntaForBranch(this.rulesMod).cleanInaccessibleStates();
-		// states
 		Set<FilterState> accessibleStates = new HashSet<FilterState>();
-		accessibleStates.addAll(destNta.getStates());
-		accessibleStates.addAll(pathNta.getStates());
-		accessibleStates.addAll(prefNta.getStates());
-		accessibleStates.addAll(comNta.getStates());
-		accessibleStates.addAll(modNta.getStates());
+		final Set<IRule<LabelPair,FilterState>> destRules = 
+			accessibleRules(this.rulesDest, accessibleStates);
+		final Set<IRule<LabelPair,FilterState>> pathRules = 
+			accessibleRules(this.rulesPath, accessibleStates);
+		final Set<IRule<LabelPair,FilterState>> prefRules = 
+			accessibleRules(this.rulesPref, accessibleStates);
+		final Set<IRule<LabelPair,FilterState>> comRules = 
+			accessibleRules(this.rulesCom, accessibleStates);
+		final Set<IRule<LabelPair,FilterState>> modRules = 
+			accessibleRules(this.rulesMod, accessibleStates);
 		// rules at the root
 		Set<IRule<LabelPair,FilterState>> rootRules = 
 			new HashSet<IRule<LabelPair,FilterState>>();
@@ -706,11 +1361,153 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 		newFinalStates.retainAll(this.getFinalStates());
 		return new FilterAutomaton(this.getActionAlphabet(), 
 			accessibleStates, newFinalStates, this.sinkState(), 
-			destNta.getRules(false), pathNta.getRules(false), 
-			prefNta.getRules(false), comNta.getRules(false), 
-			modNta.getRules(false), rootRules);
+			destRules, pathRules, prefRules, comRules, modRules, 
+			rootRules);
+	}
+
+	/**
+	 * Returns the accessible rules of a branch, and adds its accessible 
+	 * states to the given set. An identity branch is kept as it is, since
+	 * all its states are accessible.
+	 */
+	private Set<IRule<LabelPair,FilterState>> accessibleRules(
+			final Set<IRule<LabelPair,FilterState>> branchRules,
+			final Set<FilterState> accessibleStates) {
+		final IdentityBranch identity = IdentityBranch.of(branchRules);
+		if (identity != null) {
+			accessibleStates.add(identity.state());
+			if (identity.diamondState() != null) {
+				accessibleStates.add(identity.diamondState());
+			}
+			return identity;
+		}
+		final INTA<LabelPair,FilterState> nta = 
+			ntaForBranch(branchRules).cleanInaccessibleStates();
+		accessibleStates.addAll(nta.getStates());
+		return nta.getRules(false);
 	}
 	
+	/**
+	 * Returns the same automaton, where both inaccessible states and states
+	 * which cannot lead to a final state have been removed.
+	 */
+	public final FilterAutomaton trim() {
+		return this.cleanInaccessibleStates().cleanUselessStates();
+	}
+
+	/**
+	 * Returns the same automaton, where useless states have been removed: a
+	 * state is useful in a branch when it appears in this branch of a root
+	 * rule leading to a final state, or on the left of a rule of this branch
+	 * whose right state is useful. This is done top-down, branch by branch,
+	 * since the same state may be useful in a branch and not in another one.
+	 */
+	public final FilterAutomaton cleanUselessStates() {
+		final List<Set<IRule<LabelPair,FilterState>>> branches = 
+			new ArrayList<Set<IRule<LabelPair,FilterState>>>();
+		branches.add(this.rulesDest);
+		branches.add(this.rulesPath);
+		branches.add(this.rulesPref);
+		branches.add(this.rulesCom);
+		branches.add(this.rulesMod);
+		// root rules leading to a final state
+		final List<Set<FilterState>> usefulStates = 
+			new ArrayList<Set<FilterState>>();
+		for (int i=0; i<branches.size(); i++) {
+			usefulStates.add(new HashSet<FilterState>());
+		}
+		final Set<IRule<LabelPair,FilterState>> rootRules = 
+			new HashSet<IRule<LabelPair,FilterState>>();
+		for (IRule<LabelPair,FilterState> rootRule : this.rulesRoot) {
+			if (this.getFinalStates().contains(rootRule.rightState())) {
+				rootRules.add(rootRule);
+				final List<FilterState> leftStates = 
+					rootRule.leftHandSide().states();
+				for (int i=0; i<leftStates.size(); i++) {
+					usefulStates.get(i).add(leftStates.get(i));
+				}
+			}
+		}
+		// useful rules of each branch
+		final Set<FilterState> states = new HashSet<FilterState>();
+		final List<Set<IRule<LabelPair,FilterState>>> usefulBranches = 
+			new ArrayList<Set<IRule<LabelPair,FilterState>>>();
+		for (int i=0; i<branches.size(); i++) {
+			usefulBranches.add(
+				usefulRules(branches.get(i), usefulStates.get(i)));
+			states.addAll(usefulStates.get(i));
+		}
+		final Set<FilterState> finalStates = new HashSet<FilterState>();
+		for (IRule<LabelPair,FilterState> rootRule : rootRules) {
+			finalStates.add(rootRule.rightState());
+		}
+		states.addAll(finalStates);
+		if (this.getStates().contains(this.sinkState())) {
+			states.add(this.sinkState());
+		}
+		if (states.size() == this.getStates().size() &&
+				rootRules.size() == this.rulesRoot.size()) {
+			return this;
+		}
+		return new FilterAutomaton(this.getActionAlphabet(), 
+			states, finalStates, this.sinkState(), 
+			usefulBranches.get(0), usefulBranches.get(1), 
+			usefulBranches.get(2), usefulBranches.get(3), 
+			usefulBranches.get(4), rootRules);
+	}
+
+	/**
+	 * Returns the rules of a branch whose right state is useful, and adds to
+	 * the given useful states those found on their left. An identity branch 
+	 * is kept as it is when its state is useful.
+	 */
+	private static Set<IRule<LabelPair,FilterState>> usefulRules(
+			final Set<IRule<LabelPair,FilterState>> branchRules,
+			final Set<FilterState> usefulStates) {
+		final IdentityBranch identity = IdentityBranch.of(branchRules);
+		if (identity != null) {
+			if (!usefulStates.contains(identity.state())) {
+				return new HashSet<IRule<LabelPair,FilterState>>();
+			}
+			if (identity.diamondState() != null) {
+				usefulStates.add(identity.diamondState());
+			}
+			return identity;
+		}
+		// rules by right state
+		final Map<FilterState,List<IRule<LabelPair,FilterState>>> rulesTo = 
+			new HashMap<FilterState,List<IRule<LabelPair,FilterState>>>();
+		for (IRule<LabelPair,FilterState> rule : branchRules) {
+			List<IRule<LabelPair,FilterState>> rules = 
+				rulesTo.get(rule.rightState());
+			if (rules == null) {
+				rules = new ArrayList<IRule<LabelPair,FilterState>>();
+				rulesTo.put(rule.rightState(), rules);
+			}
+			rules.add(rule);
+		}
+		final Set<IRule<LabelPair,FilterState>> usefulRules = 
+			new HashSet<IRule<LabelPair,FilterState>>();
+		final LinkedList<FilterState> toVisit = 
+			new LinkedList<FilterState>(usefulStates);
+		while (!toVisit.isEmpty()) {
+			final List<IRule<LabelPair,FilterState>> rules = 
+				rulesTo.get(toVisit.removeFirst());
+			if (rules == null) {
+				continue;
+			}
+			for (IRule<LabelPair,FilterState> rule : rules) {
+				usefulRules.add(rule);
+				for (FilterState leftState : rule.leftHandSide().states()) {
+					if (usefulStates.add(leftState)) {
+						toVisit.add(leftState);
+					}
+				}
+			}
+		}
+		return usefulRules;
+	}
+
 	/**
 	 * Builds an NTA for a single branch.
 	 */
@@ -723,7 +1520,8 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 	
 	/**
 	 * Returns an equivalent automaton, where input trees are only valid 
-	 * routes.
+	 * routes. The result is trimmed: its states are all accessible and 
+	 * useful.
 	 * @param routeAlphabet the alphabet of this new automaton
 	 * @return an automaton for this filter, considering only valid routes
 	 */
@@ -731,7 +1529,7 @@ public class FilterAutomaton extends NTA<LabelPair, FilterState> {
 			final RouteAlphabet routeAlphabet) {
 		final FilterAutomaton onlyRoutes = 
 			ValidRoutePairs.routePairs(routeAlphabet);
-		return this.compose(onlyRoutes);
+		return this.composeReachable(onlyRoutes).cleanUselessStates();
 	}
 	
 	/**
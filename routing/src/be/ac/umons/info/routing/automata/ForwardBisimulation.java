@@ -0,0 +1,237 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import traul.ranked.nta.labels.ILabel;
+import traul.ranked.nta.rules.IRule;
+import traul.ranked.nta.states.IState;
+
+/**
+ * Coarsest forward bisimulation of a tree automaton, computed by partition
+ * refinement. Two states p and q are equivalent if they are both final or
+ * both non-final, and if for every context f(q1,...,[],...,qn), the rules
+ * f(q1,...,p,...,qn) -> r and f(q1,...,q,...,qn) -> r' reach the same 
+ * classes of states. Merging the states of each class preserves the 
+ * language of the automaton, and keeps a deterministic automaton 
+ * deterministic. All the rules of an automaton are refined together, so 
+ * that the root rules relate the classes of the different branches.
+ * <p>
+ * The states are first merged by the coarsest backward bisimulation: two 
+ * states are backward bisimilar if they are reached by rules with the same
+ * labels from the same classes, and thus by the same trees. The forward 
+ * bisimulation is then computed on these classes, so that the siblings 
+ * q1,...,qn of a context are given by their backward classes. Keying the 
+ * contexts on the forward classes themselves would not be sound for 
+ * non-deterministic automata: a tree could mix children accepted in 
+ * different contexts.
+ */
+class ForwardBisimulation<L extends ILabel, S extends IState> {
+
+	private final Map<S, S> representatives = new HashMap<S, S>();
+	private final int classes;
+
+	/**
+	 * Computes the coarsest forward bisimulation.
+	 * @param states the states of the automaton
+	 * @param finalStates its final states
+	 * @param sinkState its sink state, kept alone in its class (may be null)
+	 * @param rules its rules
+	 */
+	ForwardBisimulation(final Set<S> states, final Set<S> finalStates,
+			final S sinkState, final Collection<IRule<L, S>> rules) {
+		final List<S> stateList = new ArrayList<S>(states);
+		for (IRule<L, S> rule : rules) {
+			if (!states.contains(rule.rightState())) {
+				stateList.add(rule.rightState());
+			}
+		}
+		// backward classes: the sink is kept alone
+		Map<S, Integer> backward = new HashMap<S, Integer>();
+		for (S state : stateList) {
+			backward.put(state, state.equals(sinkState) ? 1 : 0);
+		}
+		backward = refine(stateList, rules, backward, null);
+		// forward classes of the backward classes, whose initial partition
+		// is: final classes, other classes, sink
+		final Set<Integer> finalClasses = new HashSet<Integer>();
+		for (S state : finalStates) {
+			finalClasses.add(backward.get(state));
+		}
+		Map<S, Integer> block = new HashMap<S, Integer>();
+		for (S state : stateList) {
+			int initial = finalClasses.contains(backward.get(state)) ? 1 : 0;
+			if (state.equals(sinkState)) {
+				initial = 2;
+			}
+			block.put(state, initial);
+		}
+		block = refine(stateList, rules, block, backward);
+		// the first state of each class represents it
+		Map<Integer, S> firstOfBlock = new HashMap<Integer, S>();
+		for (S state : stateList) {
+			S first = firstOfBlock.get(block.get(state));
+			if (first == null) {
+				first = state;
+				firstOfBlock.put(block.get(state), state);
+			}
+			this.representatives.put(state, first);
+		}
+		this.classes = firstOfBlock.size();
+	}
+
+	/**
+	 * Refines a partition until it is stable.
+	 * @param backwardClasses null to refine by the rules reaching the 
+	 * states, or the backward classes, to refine these classes by the 
+	 * contexts where they appear
+	 */
+	private Map<S, Integer> refine(final List<S> stateList, 
+			final Collection<IRule<L, S>> rules, Map<S, Integer> block,
+			final Map<S, Integer> backwardClasses) {
+		int blockCount = countBlocks(block);
+		while (true) {
+			Map<Object, Set<List<Object>>> signatures =
+				backwardClasses == null ? backwardSignatures(rules, block) : 
+					forwardSignatures(rules, block, backwardClasses);
+			Map<List<Object>, Integer> newBlocks =
+				new HashMap<List<Object>, Integer>();
+			Map<S, Integer> newBlock = new HashMap<S, Integer>();
+			for (S state : stateList) {
+				Set<List<Object>> signature = signatures.get(
+					backwardClasses == null ? 
+						state : backwardClasses.get(state));
+				if (signature == null) {
+					signature = new HashSet<List<Object>>();
+				}
+				final List<Object> key = Arrays.<Object>asList(
+					block.get(state), signature);
+				Integer index = newBlocks.get(key);
+				if (index == null) {
+					index = newBlocks.size();
+					newBlocks.put(key, index);
+				}
+				newBlock.put(state, index);
+			}
+			block = newBlock;
+			if (newBlocks.size() == blockCount) {
+				return block;
+			}
+			blockCount = newBlocks.size();
+		}
+	}
+
+	/**
+	 * Signature of a state: the labels and classes of left states of the 
+	 * rules reaching it.
+	 */
+	private Map<Object, Set<List<Object>>> backwardSignatures(
+			final Collection<IRule<L, S>> rules, final Map<S, Integer> block) {
+		Map<Object, Set<List<Object>>> signatures =
+			new HashMap<Object, Set<List<Object>>>();
+		for (IRule<L, S> rule : rules) {
+			final List<S> leftStates = rule.leftStates();
+			Object[] context = new Object[leftStates.size()+1];
+			context[0] = rule.label();
+			for (int j=0; j<leftStates.size(); j++) {
+				context[j+1] = block.get(leftStates.get(j));
+			}
+			addSignature(signatures, rule.rightState(), context);
+		}
+		return signatures;
+	}
+
+	/**
+	 * Signature of a backward class: the classes reached in each context 
+	 * where its states appear, the siblings being given by their backward 
+	 * classes.
+	 */
+	private Map<Object, Set<List<Object>>> forwardSignatures(
+			final Collection<IRule<L, S>> rules, final Map<S, Integer> block,
+			final Map<S, Integer> backwardClasses) {
+		Map<Object, Set<List<Object>>> signatures =
+			new HashMap<Object, Set<List<Object>>>();
+		for (IRule<L, S> rule : rules) {
+			final List<S> leftStates = rule.leftStates();
+			for (int i=0; i<leftStates.size(); i++) {
+				Object[] context = new Object[leftStates.size()+2];
+				context[0] = rule.label();
+				for (int j=0; j<leftStates.size(); j++) {
+					context[j+1] = j==i ? null : 
+						backwardClasses.get(leftStates.get(j));
+				}
+				context[leftStates.size()+1] =
+					block.get(rule.rightState());
+				addSignature(signatures, 
+					backwardClasses.get(leftStates.get(i)), context);
+			}
+		}
+		return signatures;
+	}
+
+	private static void addSignature(
+			final Map<Object, Set<List<Object>>> signatures, 
+			final Object owner, final Object[] context) {
+		Set<List<Object>> signature = signatures.get(owner);
+		if (signature == null) {
+			signature = new HashSet<List<Object>>();
+			signatures.put(owner, signature);
+		}
+		signature.add(Arrays.asList(context));
+	}
+
+	private static <S> int countBlocks(final Map<S, Integer> block) {
+		return new HashSet<Integer>(block.values()).size();
+	}
+
+	/**
+	 * Returns the state representing the class of the given state.
+	 */
+	S representative(final S state) {
+		final S representative = this.representatives.get(state);
+		return representative == null ? state : representative;
+	}
+
+	/**
+	 * Returns the number of classes.
+	 */
+	int classes() {
+		return this.classes;
+	}
+
+	/**
+	 * Returns the representatives of a set of states.
+	 */
+	Set<S> representatives(final Set<S> states) {
+		Set<S> result = new HashSet<S>();
+		for (S state : states) {
+			result.add(representative(state));
+		}
+		return result;
+	}
+}
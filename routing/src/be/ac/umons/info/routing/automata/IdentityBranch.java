@@ -0,0 +1,309 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import traul.ranked.nta.rules.BasicRule;
+import traul.ranked.nta.rules.IRule;
+
+/**
+ * Rules of a branch recognizing the pairs (t,t) of quasi-routes, with a
+ * single state (see {@link QuasiRoutes}). The set is a view on the values of
+ * the branch: its rules are not stored, but answered from the values and 
+ * the label of the leaf, so that compositions with such a branch can be 
+ * computed without joining rules. As soon as the set is modified (eg. an 
+ * action adds its own rules to the branch), its rules are stored and it is
+ * handled as any other set of rules.
+ */
+final class IdentityBranch extends AbstractSet<IRule<LabelPair, FilterState>> {
+
+	private final LabelPair leafLabel;
+	private final Set<IntegerLabel> values;
+	private final FilterState state;
+	private final FilterState diamondState;
+	private Set<IRule<LabelPair, FilterState>> rules = null;
+	private LabelCodec indexCodec = null;
+	private RuleIndex index = null;
+	private RuleIndex paddedIndex = null;
+
+	/**
+	 * Constructor
+	 * @param leafLabel label of the leaf of the branch, eg. (DEST,DEST)
+	 * @param values the values of the branch
+	 * @param state the state of the branch
+	 */
+	IdentityBranch(final LabelPair leafLabel, final Set<IntegerLabel> values,
+			final FilterState state) {
+		this(leafLabel, values, state, null);
+	}
+
+	private IdentityBranch(final LabelPair leafLabel, 
+			final Set<IntegerLabel> values, final FilterState state,
+			final FilterState diamondState) {
+		this.leafLabel = leafLabel;
+		this.values = values;
+		this.state = state;
+		this.diamondState = diamondState;
+	}
+
+	/**
+	 * Returns the given rules as an identity branch, or null if they are not
+	 * known to encode the identity.
+	 */
+	static IdentityBranch of(final Set<IRule<LabelPair, FilterState>> rules) {
+		if (rules instanceof IdentityBranch) {
+			final IdentityBranch branch = (IdentityBranch)rules;
+			if (branch.isIdentity()) {
+				return branch;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the same branch, with the rules allowing (diamond,diamond)
+	 * labels below leaves (see FilterAutomaton.addDiamondRules()).
+	 */
+	IdentityBranch withDiamondRules(final FilterState qDiamond) {
+		return new IdentityBranch(this.leafLabel, this.values, this.state,
+			qDiamond);
+	}
+
+	/**
+	 * Returns the same branch where the state is replaced by another one, or
+	 * null if this branch has diamond rules.
+	 */
+	IdentityBranch withState(final FilterState newState) {
+		if (this.diamondState != null) {
+			return null;
+		}
+		return new IdentityBranch(this.leafLabel, this.values, newState);
+	}
+
+	/**
+	 * Returns the composition of two identity branches, or null if they do
+	 * not have the same kind of rules. The result is the identity on the 
+	 * common values, with the product of both states. Diamond rules are 
+	 * not kept by the composition (see RuleComposition).
+	 */
+	static IdentityBranch compose(final IdentityBranch branch1,
+			final IdentityBranch branch2, final FilterState productState) {
+		if (!branch1.leafLabel.equals(branch2.leafLabel) ||
+				(branch1.diamondState==null)!=(branch2.diamondState==null)) {
+			return null;
+		}
+		Set<IntegerLabel> values = branch1.values;
+		if (!branch2.values.equals(values)) {
+			values = new HashSet<IntegerLabel>(values);
+			values.retainAll(branch2.values);
+		}
+		return new IdentityBranch(branch1.leafLabel, values, productState);
+	}
+
+	FilterState state()        { return this.state; }
+	FilterState diamondState() { return this.diamondState; }
+
+	/**
+	 * Index of the rules of this branch, for a given label encoding, with
+	 * the padding rules of the branch if padded is true (see 
+	 * {@link DiamondPadding}).
+	 */
+	synchronized RuleIndex index(final LabelCodec codec, 
+			final boolean padded) {
+		if (this.indexCodec != codec) {
+			this.index = null;
+			this.paddedIndex = null;
+			this.indexCodec = codec;
+		}
+		if (padded) {
+			if (this.paddedIndex == null) {
+				this.paddedIndex = 
+					new RuleIndex(PackedRule.pack(this, codec, true));
+			}
+			return this.paddedIndex;
+		}
+		if (this.index == null) {
+			this.index = new RuleIndex(PackedRule.pack(this, codec));
+		}
+		return this.index;
+	}
+
+	private synchronized boolean isIdentity() {
+		return this.rules == null;
+	}
+
+	/**
+	 * Returns the rule of the identity having the given label, or null if 
+	 * there is none.
+	 */
+	private IRule<LabelPair, FilterState> ruleWithLabel(final LabelPair label) {
+		if (label.equals(this.leafLabel)) {
+			return new BasicRule<LabelPair,FilterState>(label, this.state);
+		}
+		if (label.getClass() == LabelPair.class && 
+				label.left().equals(label.right()) &&
+				this.values.contains(label.left())) {
+			return new BasicRule<LabelPair,FilterState>(
+				label, this.state, this.state);
+		}
+		if (this.diamondState == null) {
+			return null;
+		}
+		if (label.equals(ActionAlphabet.DIAMONDDIAMOND)) {
+			return new BasicRule<LabelPair,FilterState>(
+				label, this.diamondState);
+		}
+		if (label.equals(ActionAlphabet.DIAMONDDIAMOND1)) {
+			return new BasicRule<LabelPair,FilterState>(
+				label, this.diamondState, this.diamondState);
+		}
+		if (label.equals(new UnaryVersionLabelPair(this.leafLabel))) {
+			return new BasicRule<LabelPair,FilterState>(
+				label, this.state, this.diamondState);
+		}
+		return null;
+	}
+
+	/**
+	 * Rules of the identity which do not depend on the values.
+	 */
+	private List<IRule<LabelPair, FilterState>> fixedRules() {
+		final List<IRule<LabelPair, FilterState>> fixed = 
+			new ArrayList<IRule<LabelPair, FilterState>>();
+		fixed.add(new BasicRule<LabelPair,FilterState>(
+			this.leafLabel, this.state));
+		if (this.diamondState != null) {
+			fixed.add(new BasicRule<LabelPair,FilterState>(
+				ActionAlphabet.DIAMONDDIAMOND, this.diamondState));
+			fixed.add(new BasicRule<LabelPair,FilterState>(
+				ActionAlphabet.DIAMONDDIAMOND1, this.diamondState, 
+				this.diamondState));
+			fixed.add(new BasicRule<LabelPair,FilterState>(
+				new UnaryVersionLabelPair(this.leafLabel), this.state, 
+				this.diamondState));
+		}
+		return fixed;
+	}
+
+	/**
+	 * Stores the rules, before the set is modified: it then no longer 
+	 * encodes the identity.
+	 */
+	private synchronized Set<IRule<LabelPair, FilterState>> materialized() {
+		if (this.rules == null) {
+			final Set<IRule<LabelPair, FilterState>> stored = 
+				new HashSet<IRule<LabelPair, FilterState>>(size());
+			final Iterator<IRule<LabelPair, FilterState>> iterator = 
+				iterator();
+			while (iterator.hasNext()) {
+				stored.add(iterator.next());
+			}
+			this.rules = stored;
+		}
+		this.index = null;
+		this.paddedIndex = null;
+		return this.rules;
+	}
+
+	@Override
+	public boolean contains(final Object o) {
+		if (!isIdentity()) {
+			return this.rules.contains(o);
+		}
+		if (!(o instanceof IRule)) {
+			return false;
+		}
+		final Object label = ((IRule<?,?>)o).label();
+		if (!(label instanceof LabelPair)) {
+			return false;
+		}
+		final IRule<LabelPair, FilterState> rule = 
+			ruleWithLabel((LabelPair)label);
+		return rule != null && rule.equals(o);
+	}
+
+	@Override
+	public int size() {
+		if (!isIdentity()) {
+			return this.rules.size();
+		}
+		return this.values.size() + (this.diamondState == null ? 1 : 4);
+	}
+
+	@Override
+	public boolean add(final IRule<LabelPair, FilterState> rule) {
+		if (contains(rule)) {
+			return false;
+		}
+		return materialized().add(rule);
+	}
+
+	@Override
+	public boolean remove(final Object rule) {
+		if (!contains(rule)) {
+			return false;
+		}
+		return materialized().remove(rule);
+	}
+
+	@Override
+	public void clear() {
+		materialized().clear();
+	}
+
+	@Override
+	public Iterator<IRule<LabelPair, FilterState>> iterator() {
+		if (!isIdentity()) {
+			return this.rules.iterator();
+		}
+		final Iterator<IRule<LabelPair, FilterState>> fixed = 
+			fixedRules().iterator();
+		final Iterator<IntegerLabel> valueIterator = this.values.iterator();
+		return new Iterator<IRule<LabelPair, FilterState>>() {
+			private IRule<LabelPair, FilterState> last = null;
+			public boolean hasNext() {
+				return fixed.hasNext() || valueIterator.hasNext();
+			}
+			public IRule<LabelPair, FilterState> next() {
+				if (fixed.hasNext()) {
+					this.last = fixed.next();
+				} else {
+					final int i = valueIterator.next().intValue();
+					this.last = new BasicRule<LabelPair,FilterState>(
+						ActionAlphabet.integerinteger(i, i), state, state);
+				}
+				return this.last;
+			}
+			public void remove() {
+				if (this.last == null) {
+					throw new IllegalStateException();
+				}
+				materialized().remove(this.last);
+				this.last = null;
+			}
+		};
+	}
+}
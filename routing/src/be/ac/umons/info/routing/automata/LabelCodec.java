@@ -0,0 +1,198 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import traul.ranked.nta.labels.ILabel;
+
+/**
+ * Encoding of labels into primitive values. A simple label is encoded in an
+ * int, made of a tag (DEST, PATH, COM, DIAMOND, R, R_BAR, ...) and, for
+ * integer labels, of a dense index of the integer value. A LabelPair is
+ * encoded in a long: its left component in the high 32 bits, its right
+ * component in the low 32 bits, and the highest bit tells whether it is a
+ * UnaryVersionLabelPair.
+ * Integer values are given indexes on demand, so that a codec can be shared
+ * by all the automata built on an alphabet.
+ */
+public class LabelCodec {
+
+	private static final int TAG_SHIFT = 27;
+	private static final int INDEX_MASK = (1 << TAG_SHIFT)-1;
+	private static final int COMPONENT_MASK = 0x7fffffff;
+	private static final long UNARY_FLAG = 1L << 63;
+
+	private static final int INTEGER_TAG = 1;
+	private static final ILabel[] NAMED_LABELS = {
+		null, null, RouteAlphabet.R, RouteAlphabet.R_BAR, RouteAlphabet.DEST,
+		RouteAlphabet.PATH, RouteAlphabet.PREF, RouteAlphabet.COM,
+		RouteAlphabet.ACCEPTED, RouteAlphabet.REJECTED,
+		RouteAlphabet.MODIFIED, RouteAlphabet.DIAMOND, RouteAlphabet.PATH1,
+		RouteAlphabet.COM1, RouteAlphabet.DIAMOND1 };
+	private static final Map<ILabel,Integer> NAMED_CODES =
+		new HashMap<ILabel,Integer>();
+	static {
+		for (int tag=INTEGER_TAG+1;tag<NAMED_LABELS.length;tag++) {
+			NAMED_CODES.put(NAMED_LABELS[tag], tag << TAG_SHIFT);
+		}
+	}
+
+	private final Map<Integer,Integer> indexByValue =
+		new ConcurrentHashMap<Integer,Integer>();
+	private final Map<Integer,IntegerLabel> labelByIndex =
+		new ConcurrentHashMap<Integer,IntegerLabel>();
+
+	/**
+	 * Constructor, for a codec with no integer value yet.
+	 */
+	public LabelCodec() {
+	}
+
+	/**
+	 * Constructor, giving indexes to all the integer values of an alphabet.
+	 */
+	public LabelCodec(final RouteAlphabet routeAlphabet) {
+		for (IntegerLabel label : routeAlphabet.destAlphabet()) {
+			encode(label);
+		}
+		for (IntegerLabel label : routeAlphabet.asPathAlphabet()) {
+			encode(label);
+		}
+		for (IntegerLabel label : routeAlphabet.prefAlphabet()) {
+			encode(label);
+		}
+		for (IntegerLabel label : routeAlphabet.comAlphabet()) {
+			encode(label);
+		}
+	}
+
+	/**
+	 * Returns the code of a simple label.
+	 * @throws IllegalArgumentException if the label is not a label of route
+	 *   alphabets
+	 */
+	public int encode(final ILabel label) {
+		if (label instanceof IntegerLabel) {
+			final int value = ((IntegerLabel)label).intValue();
+			Integer index = this.indexByValue.get(value);
+			if (index == null) {
+				index = register(value);
+			}
+			return (INTEGER_TAG << TAG_SHIFT) | index;
+		}
+		final Integer code = NAMED_CODES.get(label);
+		if (code == null) {
+			throw new IllegalArgumentException("Unknown label: "+label);
+		}
+		return code;
+	}
+
+	/**
+	 * Returns the code of a pair of labels.
+	 */
+	public long encode(final LabelPair label) {
+		return pack(encode(label.left()), encode(label.right()),
+			label instanceof UnaryVersionLabelPair);
+	}
+
+	/**
+	 * Returns the simple label of a code.
+	 */
+	public ILabel decode(final int code) {
+		final int tag = code >>> TAG_SHIFT;
+		if (tag == INTEGER_TAG) {
+			return this.labelByIndex.get(code & INDEX_MASK);
+		}
+		return NAMED_LABELS[tag];
+	}
+
+	/**
+	 * Returns the pair of labels of a code.
+	 */
+	public LabelPair decode(final long code) {
+		final LabelPair label =
+			new LabelPair(decode(left(code)), decode(right(code)));
+		if (isUnary(code)) {
+			return new UnaryVersionLabelPair(label);
+		}
+		return label;
+	}
+
+	/**
+	 * Returns true iff a code is the code of an integer label.
+	 */
+	public static boolean isInteger(final int code) {
+		return code >>> TAG_SHIFT == INTEGER_TAG;
+	}
+
+	/**
+	 * Returns the index of the integer value of the code of an integer label.
+	 */
+	public static int index(final int code) {
+		return code & INDEX_MASK;
+	}
+
+	/**
+	 * Packs the codes of two simple labels into the code of a pair.
+	 */
+	public static long pack(final int left, final int right,
+			final boolean unary) {
+		final long code = ((long)left << 32) | (right & 0xffffffffL);
+		return unary ? code | UNARY_FLAG : code;
+	}
+
+	/**
+	 * Returns the code of the left component of a pair.
+	 */
+	public static int left(final long code) {
+		return (int)(code >>> 32) & COMPONENT_MASK;
+	}
+
+	/**
+	 * Returns the code of the right component of a pair.
+	 */
+	public static int right(final long code) {
+		return (int)code;
+	}
+
+	/**
+	 * Returns true iff the code is the code of a UnaryVersionLabelPair.
+	 */
+	public static boolean isUnary(final long code) {
+		return (code & UNARY_FLAG) != 0;
+	}
+
+	private synchronized Integer register(final int value) {
+		Integer index = this.indexByValue.get(value);
+		if (index == null) {
+			index = this.labelByIndex.size();
+			if (index > INDEX_MASK) {
+				throw new IllegalStateException(
+					"Too many integer values in the alphabet");
+			}
+			this.labelByIndex.put(index, new IntegerLabel(value));
+			this.indexByValue.put(value, index);
+		}
+		return index;
+	}
+}
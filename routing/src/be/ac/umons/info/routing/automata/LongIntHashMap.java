@@ -0,0 +1,183 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from primitive longs to primitive ints, using open addressing with
+ * linear probing. It avoids boxing keys and values, and allocates nothing
+ * but its two arrays. This class is not thread-safe.
+ */
+public class LongIntHashMap {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size;
+	private int mask;
+
+	/**
+	 * Constructor
+	 */
+	public LongIntHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor, for a map that will contain about expectedSize entries.
+	 */
+	public LongIntHashMap(final int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity < 2*expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Returns the value associated with a key, or defaultValue if the key is
+	 * not in the map.
+	 */
+	public int get(final long key, final int defaultValue) {
+		int i = slot(key);
+		while (this.used[i]) {
+			if (this.keys[i] == key) {
+				return this.values[i];
+			}
+			i = (i+1) & this.mask;
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Returns true iff the key is in the map.
+	 */
+	public boolean containsKey(final long key) {
+		int i = slot(key);
+		while (this.used[i]) {
+			if (this.keys[i] == key) {
+				return true;
+			}
+			i = (i+1) & this.mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Associates a value with a key.
+	 * @return the previous value of the key, or defaultValue if the key was
+	 *   not in the map
+	 */
+	public int put(final long key, final int value, final int defaultValue) {
+		int i = slot(key);
+		while (this.used[i]) {
+			if (this.keys[i] == key) {
+				final int previous = this.values[i];
+				this.values[i] = value;
+				return previous;
+			}
+			i = (i+1) & this.mask;
+		}
+		this.used[i] = true;
+		this.keys[i] = key;
+		this.values[i] = value;
+		this.size++;
+		if (2*this.size > this.keys.length) {
+			rehash();
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Associates a value with a key, if the key is not already in the map.
+	 * @return the value associated with the key after this call
+	 */
+	public int putIfAbsent(final long key, final int value) {
+		int i = slot(key);
+		while (this.used[i]) {
+			if (this.keys[i] == key) {
+				return this.values[i];
+			}
+			i = (i+1) & this.mask;
+		}
+		this.used[i] = true;
+		this.keys[i] = key;
+		this.values[i] = value;
+		this.size++;
+		if (2*this.size > this.keys.length) {
+			rehash();
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the number of keys in the map.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Removes all entries, keeping the allocated arrays.
+	 */
+	public void clear() {
+		Arrays.fill(this.used, false);
+		this.size = 0;
+	}
+
+	private int slot(final long key) {
+		// finalizer of MurmurHash3
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int)h & this.mask;
+	}
+
+	private void allocate(final int capacity) {
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		this.used = new boolean[capacity];
+		this.mask = capacity-1;
+	}
+
+	private void rehash() {
+		final long[] oldKeys = this.keys;
+		final int[] oldValues = this.values;
+		final boolean[] oldUsed = this.used;
+		allocate(2*oldKeys.length);
+		for (int j=0;j<oldKeys.length;j++) {
+			if (oldUsed[j]) {
+				int i = slot(oldKeys[j]);
+				while (this.used[i]) {
+					i = (i+1) & this.mask;
+				}
+				this.used[i] = true;
+				this.keys[i] = oldKeys[j];
+				this.values[i] = oldValues[j];
+			}
+		}
+	}
+}
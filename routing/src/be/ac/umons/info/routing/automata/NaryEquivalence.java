@@ -0,0 +1,364 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import traul.ranked.nta.labels.ILabel;
+import traul.ranked.nta.rules.IRule;
+import traul.ranked.terms.ITerm;
+import traul.ranked.terms.Term;
+
+/**
+ * Equivalence of k filter automata at once, by the product of the k 
+ * automata: a tuple (q1,...,qk) of states is reached by a route t with a 
+ * mask telling which images of t differ from its image by the first 
+ * automaton. Rules reading the same input are joined once one of their 
+ * tuples of left states is reached, and reach their tuple of right states 
+ * with the union of the masks of their children and of their labels. The
+ * exploration stops at the first tuple of final states reached with a 
+ * non-empty mask: the automata of this mask disagree with the first one.
+ * <p>
+ * There are at most 32 automata, the mask being an int.
+ */
+public class NaryEquivalence {
+
+	private final List<DiamondPadding> padded = 
+		new ArrayList<DiamondPadding>();
+	private final List<Map<ILabel, List<IRule<LabelPair, FilterState>>>> 
+		rulesByInput = 
+			new ArrayList<Map<ILabel, List<IRule<LabelPair, FilterState>>>>();
+	private final Map<List<FilterState>, Node> nodes = 
+		new HashMap<List<FilterState>, Node>();
+	private final Map<List<IRule<LabelPair, FilterState>>, RuleTuple> 
+		ruleTuples = 
+			new HashMap<List<IRule<LabelPair, FilterState>>, RuleTuple>();
+	// tuples reached with a new mask
+	private final LinkedList<Node> agenda = new LinkedList<Node>();
+	private boolean explored = false;
+	private Node proofNode = null;
+	private int proofMask = 0;
+
+	/**
+	 * Constructor
+	 * @param automata the automata to be compared, on a same alphabet
+	 */
+	public NaryEquivalence(final List<FilterAutomaton> automata) {
+		if (automata.isEmpty() || automata.size() > Integer.SIZE) {
+			throw new IllegalArgumentException(
+				"Between 1 and " + Integer.SIZE + " automata are compared.");
+		}
+		for (FilterAutomaton automaton : automata) {
+			final DiamondPadding padding = new DiamondPadding(automaton);
+			this.padded.add(padding);
+			this.rulesByInput.add(padding.rulesByInput());
+		}
+	}
+
+	/**
+	 * Returns true iff all automata are equivalent.
+	 */
+	public boolean equivalent() {
+		explore();
+		return this.proofNode == null;
+	}
+
+	/**
+	 * Returns the indexes of the automata whose image of the separation 
+	 * route differs from its image by the first automaton, none if all 
+	 * automata are equivalent.
+	 */
+	public List<Integer> disagreeing() {
+		explore();
+		final List<Integer> disagreeing = new ArrayList<Integer>();
+		for (int i=1; i<this.padded.size(); i++) {
+			if ((this.proofMask & (1 << i)) != 0) {
+				disagreeing.add(i);
+			}
+		}
+		return disagreeing;
+	}
+
+	/**
+	 * Returns a pair (t,t') where t' is the image of t by the first 
+	 * automaton, and its images by the disagreeing automata differ, or null
+	 * if all automata are equivalent.
+	 */
+	public ITerm<LabelPair> separationRoute() {
+		explore();
+		if (this.proofNode == null) {
+			return null;
+		}
+		return term(this.proofNode, this.proofMask, 
+			new HashMap<Origin, ITerm<LabelPair>>());
+	}
+
+	private void explore() {
+		if (this.explored) {
+			return;
+		}
+		this.explored = true;
+		// leaves
+		final FilterAutomaton first = this.padded.get(0).automaton();
+		final Set<ILabel> leafInputs = new HashSet<ILabel>();
+		for (LabelPair leafLabel : first.getAlphabet().getSymbolsOfArity(0)) {
+			leafInputs.add(leafLabel.left());
+		}
+		leafInputs.add(ActionAlphabet.DIAMONDDIAMOND.left());
+		for (ILabel input : leafInputs) {
+			joinRules(input, null, -1, 
+				new ArrayList<IRule<LabelPair, FilterState>>());
+			if (this.proofNode != null) {
+				return;
+			}
+		}
+		while (this.proofNode == null && !this.agenda.isEmpty()) {
+			final Node node = this.agenda.removeFirst();
+			if (!node.joined) {
+				join(node);
+			} else {
+				for (RuleTuple ruleTuple : node.waiting) {
+					fire(ruleTuple);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Joins the rules using a tuple of states, when it is first reached.
+	 */
+	private void join(final Node node) {
+		node.joined = true;
+		final FilterState state = node.states.get(0);
+		for (IRule<LabelPair, FilterState> rule : 
+			this.padded.get(0).rulesUsingLeftState(state)) {
+			final List<IRule<LabelPair, FilterState>> rules = 
+				new ArrayList<IRule<LabelPair, FilterState>>();
+			rules.add(rule);
+			for (int p=0; p<rule.leftStates().size(); p++) {
+				if (rule.leftStates().get(p).equals(state)) {
+					joinRules(rule.label().left(), node, p, rules);
+				}
+			}
+			if (this.proofNode != null) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Completes the tuple of rules reading an input, whose left states at
+	 * position p are the states of the node (or whose arity is 0, if node is
+	 * null), and fires it.
+	 */
+	private void joinRules(final ILabel input, final Node node, final int p,
+			final List<IRule<LabelPair, FilterState>> rules) {
+		final int k = rules.size();
+		if (k == this.padded.size()) {
+			RuleTuple ruleTuple = this.ruleTuples.get(rules);
+			if (ruleTuple == null) {
+				ruleTuple = new RuleTuple(
+					new ArrayList<IRule<LabelPair, FilterState>>(rules));
+				this.ruleTuples.put(ruleTuple.rules, ruleTuple);
+			}
+			if (node != null) {
+				node.waiting.add(ruleTuple);
+			}
+			fire(ruleTuple);
+			return;
+		}
+		final List<IRule<LabelPair, FilterState>> candidates = 
+			this.rulesByInput.get(k).get(input);
+		if (candidates == null) {
+			return;
+		}
+		final int arity = node == null ? 0 : rules.get(0).leftStates().size();
+		for (IRule<LabelPair, FilterState> rule : candidates) {
+			if (rule.leftStates().size() != arity || (node != null &&
+				!rule.leftStates().get(p).equals(node.states.get(k)))) {
+				continue;
+			}
+			rules.add(rule);
+			joinRules(input, node, p, rules);
+			rules.remove(k);
+			if (this.proofNode != null) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reaches the tuple of right states of a tuple of rules, with the masks
+	 * obtained from the masks of its children, if they are all reached.
+	 */
+	private void fire(final RuleTuple ruleTuple) {
+		final List<IRule<LabelPair, FilterState>> rules = ruleTuple.rules;
+		final LabelPair label = rules.get(0).label();
+		int labelMask = 0;
+		for (int i=1; i<rules.size(); i++) {
+			if (!rules.get(i).label().right().equals(label.right())) {
+				labelMask |= 1 << i;
+			}
+		}
+		final int arity = ruleTuple.children.size();
+		// masks reached with the first children, with the masks of these
+		// children
+		Map<Integer, int[]> masks = new LinkedHashMap<Integer, int[]>();
+		masks.put(labelMask, new int[arity]);
+		for (int j=0; j<arity; j++) {
+			final Node child = this.nodes.get(ruleTuple.children.get(j));
+			if (child == null) {
+				return;
+			}
+			final Map<Integer, int[]> next = 
+				new LinkedHashMap<Integer, int[]>();
+			for (Map.Entry<Integer, int[]> entry : masks.entrySet()) {
+				for (int childMask : child.masks.keySet()) {
+					final int mask = entry.getKey() | childMask;
+					if (!next.containsKey(mask)) {
+						final int[] childMasks = entry.getValue().clone();
+						childMasks[j] = childMask;
+						next.put(mask, childMasks);
+					}
+				}
+			}
+			masks = next;
+		}
+		final Node right = node(ruleTuple.right);
+		for (Map.Entry<Integer, int[]> entry : masks.entrySet()) {
+			final int mask = entry.getKey();
+			if (right.masks.containsKey(mask)) {
+				continue;
+			}
+			right.masks.put(mask, new Origin(ruleTuple, entry.getValue()));
+			this.agenda.add(right);
+			if (mask != 0 && isFinal(right)) {
+				this.proofNode = right;
+				this.proofMask = mask;
+				return;
+			}
+		}
+	}
+
+	private boolean isFinal(final Node node) {
+		for (int i=0; i<this.padded.size(); i++) {
+			if (!this.padded.get(i).automaton().getFinalStates().contains(
+					node.states.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Node node(final List<FilterState> states) {
+		Node node = this.nodes.get(states);
+		if (node == null) {
+			node = new Node(states);
+			this.nodes.put(states, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Rebuilds the route reaching a tuple with a mask, from the origins of
+	 * the masks.
+	 */
+	private ITerm<LabelPair> term(final Node node, final int mask,
+			final Map<Origin, ITerm<LabelPair>> built) {
+		final Origin origin = node.masks.get(mask);
+		ITerm<LabelPair> term = built.get(origin);
+		if (term != null) {
+			return term;
+		}
+		final RuleTuple ruleTuple = origin.ruleTuple;
+		final List<ITerm<LabelPair>> children = 
+			new ArrayList<ITerm<LabelPair>>();
+		for (int j=0; j<ruleTuple.children.size(); j++) {
+			children.add(term(this.nodes.get(ruleTuple.children.get(j)), 
+				origin.childMasks[j], built));
+		}
+		term = new Term<LabelPair>(this.padded.get(0).automaton().getAlphabet(),
+			children, ruleTuple.rules.get(0).label());
+		built.put(origin, term);
+		return term;
+	}
+
+	/**
+	 * A tuple of states, with the masks it is reached with.
+	 */
+	private static final class Node {
+		final List<FilterState> states;
+		final Map<Integer, Origin> masks = new LinkedHashMap<Integer, Origin>();
+		final List<RuleTuple> waiting = new ArrayList<RuleTuple>();
+		boolean joined = false;
+
+		Node(final List<FilterState> states) {
+			this.states = states;
+		}
+	}
+
+	/**
+	 * A tuple of rules reading the same input, with its tuples of left and 
+	 * right states.
+	 */
+	private static final class RuleTuple {
+		final List<IRule<LabelPair, FilterState>> rules;
+		final List<List<FilterState>> children = 
+			new ArrayList<List<FilterState>>();
+		final List<FilterState> right = new ArrayList<FilterState>();
+
+		RuleTuple(final List<IRule<LabelPair, FilterState>> rules) {
+			this.rules = rules;
+			final int arity = rules.get(0).leftStates().size();
+			for (int j=0; j<arity; j++) {
+				final List<FilterState> child = new ArrayList<FilterState>();
+				for (IRule<LabelPair, FilterState> rule : rules) {
+					child.add(rule.leftStates().get(j));
+				}
+				this.children.add(child);
+			}
+			for (IRule<LabelPair, FilterState> rule : rules) {
+				this.right.add(rule.rightState());
+			}
+		}
+	}
+
+	/**
+	 * Back-pointer from a tuple reached with a mask to the rules reaching
+	 * it, with the masks of its children.
+	 */
+	private static final class Origin {
+		final RuleTuple ruleTuple;
+		final int[] childMasks;
+
+		Origin(final RuleTuple ruleTuple, final int[] childMasks) {
+			this.ruleTuple = ruleTuple;
+			this.childMasks = childMasks;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import traul.ranked.nta.rules.IRule;
+
+/**
+ * A rule together with the primitive code of its label (see
+ * {@link LabelCodec}), so that labels can be compared and combined without
+ * hashing label objects.
+ */
+final class PackedRule {
+
+	final IRule<LabelPair, FilterState> rule;
+	final long label;
+
+	PackedRule(final IRule<LabelPair, FilterState> rule, final long label) {
+		this.rule = rule;
+		this.label = label;
+	}
+
+	/**
+	 * Number of left states of the rule.
+	 */
+	int arity() {
+		return this.rule.leftStates().size();
+	}
+
+	/**
+	 * Code of the left component of the label.
+	 */
+	int left() {
+		return LabelCodec.left(this.label);
+	}
+
+	/**
+	 * Code of the right component of the label.
+	 */
+	int right() {
+		return LabelCodec.right(this.label);
+	}
+
+	/**
+	 * Encodes the labels of a set of rules.
+	 */
+	static List<PackedRule> pack(final Set<IRule<LabelPair, FilterState>> rules,
+			final LabelCodec codec) {
+		List<PackedRule> packedRules = new ArrayList<PackedRule>(rules.size());
+		for (IRule<LabelPair, FilterState> rule : rules) {
+			packedRules.add(new PackedRule(rule, codec.encode(rule.label())));
+		}
+		return packedRules;
+	}
+
+	/**
+	 * Encodes the labels of a set of rules, together with the padding rules
+	 * of the branch if padded is true (see {@link DiamondPadding}).
+	 */
+	static List<PackedRule> pack(final Set<IRule<LabelPair, FilterState>> rules,
+			final LabelCodec codec, final boolean padded) {
+		final List<PackedRule> packedRules = pack(rules, codec);
+		if (padded) {
+			for (IRule<LabelPair, FilterState> rule : 
+				DiamondPadding.rules(rules)) {
+				packedRules.add(
+					new PackedRule(rule, codec.encode(rule.label())));
+			}
+		}
+		return packedRules;
+	}
+}
@@ -204,6 +204,47 @@ public class PredicateAutomaton extends DTA<ILabel, IState> {
 		return newList;
 	}
 	
+	/**
+	 * Returns an equivalent automaton, where the states that are forward
+	 * bisimilar have been merged (see {@link ForwardBisimulation}). As this
+	 * automaton is deterministic, this gives the minimal automaton once 
+	 * inaccessible states have been removed.
+	 */
+	public PredicateAutomaton minimize() {
+		final ForwardBisimulation<ILabel, IState> bisimulation =
+			new ForwardBisimulation<ILabel, IState>(this.getStates(),
+				this.getFinalStates(), this.sinkState(), this.getRules(false));
+		if (bisimulation.classes() == this.getStates().size()) {
+			return this;
+		}
+		return new PredicateAutomaton(this.routeAlphabet, 
+			bisimulation.representatives(this.getStates()),
+			bisimulation.representatives(this.getFinalStates()),
+			mergedRules(this.rulesDest, bisimulation),
+			mergedRules(this.rulesPath, bisimulation),
+			mergedRules(this.rulesPref, bisimulation),
+			mergedRules(this.rulesCom, bisimulation),
+			mergedRules(this.rulesMod, bisimulation),
+			mergedRules(this.rulesRoot, bisimulation),
+			bisimulation.representative(this.sinkState()));
+	}
+
+	private static Set<IRule<ILabel, IState>> mergedRules(
+			final Set<IRule<ILabel, IState>> branchRules,
+			final ForwardBisimulation<ILabel, IState> bisimulation) {
+		Set<IRule<ILabel, IState>> rules = new HashSet<IRule<ILabel, IState>>();
+		for (IRule<ILabel, IState> rule : branchRules) {
+			List<IState> leftStates = 
+				new ArrayList<IState>(rule.leftStates().size());
+			for (IState leftState : rule.leftStates()) {
+				leftStates.add(bisimulation.representative(leftState));
+			}
+			rules.add(new BasicRule<ILabel, IState>(leftStates, 
+				rule.label(), bisimulation.representative(rule.rightState())));
+		}
+		return rules;
+	}
+
 	public Set<IRule<ILabel, IState>> getRulesDest() {
 		return this.rulesDest;
 	}
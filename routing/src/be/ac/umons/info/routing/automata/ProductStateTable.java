@@ -0,0 +1,74 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import traul.ranked.nta.states.IState;
+
+/**
+ * Interning table for the states of a product automaton: there is a single
+ * FilterState for each pair of component states, which can be found again
+ * from the pair without scanning the states of the product. The table may
+ * be shared by the threads composing the branches of two automata.
+ */
+class ProductStateTable {
+
+	private final ConcurrentMap<IState, ConcurrentMap<IState, FilterState>>
+		states = new ConcurrentHashMap<IState,
+			ConcurrentMap<IState, FilterState>>();
+
+	/**
+	 * Returns the product state (state1, state2), creating it if needed.
+	 */
+	FilterState product(final IState state1, final IState state2) {
+		ConcurrentMap<IState, FilterState> row = this.states.get(state1);
+		if (row == null) {
+			final ConcurrentMap<IState, FilterState> newRow =
+				new ConcurrentHashMap<IState, FilterState>();
+			row = this.states.putIfAbsent(state1, newRow);
+			if (row == null) {
+				row = newRow;
+			}
+		}
+		FilterState state = row.get(state2);
+		if (state == null) {
+			final FilterState newState = new FilterState(state1, state2);
+			state = row.putIfAbsent(state2, newState);
+			if (state == null) {
+				state = newState;
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the product state (state1, state2) if it has already been
+	 * created, or null.
+	 */
+	FilterState find(final IState state1, final IState state2) {
+		final ConcurrentMap<IState, FilterState> row = this.states.get(state1);
+		if (row == null) {
+			return null;
+		}
+		return row.get(state2);
+	}
+}
@@ -30,7 +30,9 @@ import traul.ranked.nta.states.IState;
 
 /**
  * This class provides the automata rules recognizing quasi-routes (resp. pairs
- * (t,t) of quasi-routes), grouped by branch.
+ * (t,t) of quasi-routes), grouped by branch. The rules for pairs (t,t) are
+ * returned as an {@link IdentityBranch}, which compositions handle without
+ * joining rules.
  */
 public class QuasiRoutes {
 
@@ -54,16 +56,8 @@ public class QuasiRoutes {
 	 */
 	public static Set<IRule<LabelPair, FilterState>> destPairBranch(
 		final RouteAlphabet alphabet, final FilterState state) {
-		Set<IRule<LabelPair,FilterState>> rules = 
-			new HashSet<IRule<LabelPair,FilterState>>();
-		rules.add(new BasicRule<LabelPair,FilterState>(
-			ActionAlphabet.DESTDEST, state));
-		for (IntegerLabel intLabel : alphabet.destAlphabet()) {
-			final int i = intLabel.intValue();
-			rules.add(new BasicRule<LabelPair,FilterState>(
-				ActionAlphabet.integerinteger(i, i), state, state));
-		}
-		return rules;
+		return new IdentityBranch(ActionAlphabet.DESTDEST, 
+			alphabet.destAlphabet(), state);
 	}
 
 	/**
@@ -86,16 +80,8 @@ public class QuasiRoutes {
 	 */
 	public static Set<IRule<LabelPair, FilterState>> pathPairBranch(
 		final RouteAlphabet alphabet, final FilterState state) {
-		Set<IRule<LabelPair,FilterState>> rules = 
-			new HashSet<IRule<LabelPair,FilterState>>();
-		rules.add(new BasicRule<LabelPair,FilterState>(
-			ActionAlphabet.PATHPATH, state));
-		for (IntegerLabel intLabel : alphabet.asPathAlphabet()) {
-			final int i = intLabel.intValue();
-			rules.add(new BasicRule<LabelPair,FilterState>(
-				ActionAlphabet.integerinteger(i, i), state, state));
-		}
-		return rules;
+		return new IdentityBranch(ActionAlphabet.PATHPATH, 
+			alphabet.asPathAlphabet(), state);
 	}
 
 	/**
@@ -118,16 +104,8 @@ public class QuasiRoutes {
 	 */
 	public static Set<IRule<LabelPair, FilterState>> prefPairBranch(
 		final RouteAlphabet alphabet, final FilterState state) {
-		Set<IRule<LabelPair,FilterState>> rules = 
-			new HashSet<IRule<LabelPair,FilterState>>();
-		rules.add(new BasicRule<LabelPair,FilterState>(
-			ActionAlphabet.PREFPREF, state));
-		for (IntegerLabel intLabel : alphabet.prefAlphabet()) {
-			final int i = intLabel.intValue();
-			rules.add(new BasicRule<LabelPair,FilterState>(
-				ActionAlphabet.integerinteger(i, i), state, state));
-		}
-		return rules;
+		return new IdentityBranch(ActionAlphabet.PREFPREF, 
+			alphabet.prefAlphabet(), state);
 	}
 
 	/**
@@ -150,16 +128,8 @@ public class QuasiRoutes {
 	 */
 	public static Set<IRule<LabelPair, FilterState>> comPairBranch(
 		final RouteAlphabet alphabet, final FilterState state) {
-		Set<IRule<LabelPair,FilterState>> rules = 
-			new HashSet<IRule<LabelPair,FilterState>>();
-		rules.add(new BasicRule<LabelPair,FilterState>(
-			ActionAlphabet.COMCOM, state));
-		for (IntegerLabel intLabel : alphabet.comAlphabet()) {
-			final int i = intLabel.intValue();
-			rules.add(new BasicRule<LabelPair,FilterState>(
-				ActionAlphabet.integerinteger(i, i), state, state));
-		}
-		return rules;
+		return new IdentityBranch(ActionAlphabet.COMCOM, 
+			alphabet.comAlphabet(), state);
 	}
 
 	/**
@@ -0,0 +1,91 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+
+package be.ac.umons.info.routing.automata;
+
+/**
+ * Table of the pairs of states reached when checking the equivalence of two
+ * automata. A pair (q,p) is given by the ids of q and p, and may be reached
+ * with the same image and/or with different images. The pairs are kept in
+ * an open-addressed table of primitive keys, so that nothing is allocated
+ * when looking them up. This class is not thread-safe.
+ */
+final class ReachedPairs {
+
+	private static final int SAME = 1;
+	private static final int DIFFERENT = 2;
+
+	private final LongIntHashMap flags = new LongIntHashMap();
+
+	/**
+	 * Primitive key of a pair of ids (both are non-negative).
+	 */
+	static long pair(final int id1, final int id2) {
+		return ((long)id1 << 32) | id2;
+	}
+
+	static int id1(final long pair) {
+		return (int)(pair >>> 32);
+	}
+
+	static int id2(final long pair) {
+		return (int)pair;
+	}
+
+	/**
+	 * True iff the pair has been reached with different images (if differs)
+	 * or with the same image (otherwise).
+	 */
+	boolean contains(final long pair, final boolean differs) {
+		return (this.flags.get(pair, 0) & flag(differs)) != 0;
+	}
+
+	/**
+	 * True iff the pair has been reached, with the same image or not.
+	 */
+	boolean contains(final long pair) {
+		return this.flags.get(pair, 0) != 0;
+	}
+
+	/**
+	 * Adds a reached pair.
+	 * @return true iff it was not reached yet with this value of differs
+	 */
+	boolean add(final long pair, final boolean differs) {
+		final int previous = this.flags.get(pair, 0);
+		final int flag = flag(differs);
+		if ((previous & flag) != 0) {
+			return false;
+		}
+		this.flags.put(pair, previous | flag, 0);
+		return true;
+	}
+
+	/**
+	 * Number of reached pairs.
+	 */
+	int size() {
+		return this.flags.size();
+	}
+
+	private static int flag(final boolean differs) {
+		return differs ? DIFFERENT : SAME;
+	}
+}
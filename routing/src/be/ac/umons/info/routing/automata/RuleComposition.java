@@ -0,0 +1,477 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import traul.ranked.nta.rules.BasicRule;
+import traul.ranked.nta.rules.IRule;
+import traul.ranked.nta.states.IState;
+
+/**
+ * Composition of the rules of a branch of two filter automata. The rules of
+ * the second automaton are indexed by the left component of their label, so
+ * that a rule (q1,...,qn) -- (a,b) --> q of the first automaton is only
+ * joined with the rules labelled by (b,c), instead of being checked against
+ * every rule of the second automaton. Branches encoding the identity (see 
+ * {@link IdentityBranch}) are composed without joining their rules.
+ * <p>
+ * The rules allowing pairs of diamonds below leaves may be added to both 
+ * sets of rules on the fly (see {@link DiamondPadding}). Composed rules with
+ * a (diamond,diamond) label are never kept in the result.
+ * <p>
+ * Several branches may be composed at the same time by different threads.
+ */
+public class RuleComposition {
+
+	/**
+	 * State used as the missing child when a leaf is composed with a unary
+	 * rule.
+	 */
+	static final FilterState Q_DIAMOND = new FilterState("qDiamond");
+
+	private final ActionAlphabet alphabet;
+	private final LabelCodec codec;
+	private final ProductStateTable productStates = new ProductStateTable();
+	private volatile Set<Integer> leafLeftLabels = null;
+
+	/**
+	 * Constructor
+	 * @param alphabet the alphabet of the composed automaton
+	 */
+	public RuleComposition(final ActionAlphabet alphabet) {
+		this.alphabet = alphabet;
+		this.codec = alphabet.labelCodec();
+	}
+
+	/**
+	 * Returns the product state (state1, state2) built by this composition,
+	 * creating it if needed.
+	 */
+	FilterState productState(final IState state1, final IState state2) {
+		return this.productStates.product(state1, state2);
+	}
+
+	/**
+	 * Returns the product state (state1, state2) if it has been built by this
+	 * composition, or null.
+	 */
+	FilterState findProductState(final IState state1, final IState state2) {
+		return this.productStates.find(state1, state2);
+	}
+
+	/**
+	 * Computes the composition of two sets of rules
+	 * @param rules1 first set of rules
+	 * @param rules2 second set of rules
+	 * @return set of rules resulting from the composition
+	 */
+	public Set<IRule<LabelPair, FilterState>> compose(
+			final Set<IRule<LabelPair, FilterState>> rules1,
+			final Set<IRule<LabelPair, FilterState>> rules2) {
+		return compose(rules1, rules2, false);
+	}
+
+	/**
+	 * Computes the composition of two sets of rules, like 
+	 * {@link #compose(Set, Set)}.
+	 * @param rules1 first set of rules
+	 * @param rules2 second set of rules
+	 * @param padded if true, the padding rules of the branch are added to
+	 *   both sets of rules (see {@link DiamondPadding})
+	 * @return set of rules resulting from the composition
+	 */
+	public Set<IRule<LabelPair, FilterState>> compose(
+			final Set<IRule<LabelPair, FilterState>> rules1,
+			final Set<IRule<LabelPair, FilterState>> rules2,
+			final boolean padded) {
+
+		final IdentityBranch identity1 = IdentityBranch.of(rules1);
+		final IdentityBranch identity2 = IdentityBranch.of(rules2);
+		final IdentityBranch identity = composeIdentities(identity1, identity2);
+		if (identity != null) {
+			return identity;
+		}
+		Set<IRule<LabelPair, FilterState>> rulesResult =
+			new HashSet<IRule<LabelPair, FilterState>>();
+		if (identity1 != null) {
+			// the labels of the identity are (b,b): each rule of the second
+			// set is only relabelled by the rule(s) reading its input
+			final RuleIndex index1 = identity1.index(this.codec, padded);
+			for (PackedRule rule2 : 
+				PackedRule.pack(rules2, this.codec, padded)) {
+				for (PackedRule rule1 :
+					index1.composableRules(rule2.left(), rule2.arity())) {
+					addComposedRule(composeRules(rule1, rule2), rulesResult);
+				}
+			}
+			return rulesResult;
+		}
+		final RuleIndex index2 = identity2 != null ?
+			identity2.index(this.codec, padded) :
+			new RuleIndex(PackedRule.pack(rules2, this.codec, padded));
+		for (PackedRule rule1 : PackedRule.pack(rules1, this.codec, padded)) {
+			for (PackedRule rule2 :
+				index2.composableRules(rule1.right(), rule1.arity())) {
+				addComposedRule(composeRules(rule1, rule2), rulesResult);
+			}
+		}
+		return rulesResult;
+	}
+
+	/**
+	 * Adds a composed rule to the result, unless it is null or has a 
+	 * (diamond,diamond) label.
+	 */
+	private static void addComposedRule(
+			final IRule<LabelPair, FilterState> rule,
+			final Set<IRule<LabelPair, FilterState>> rulesResult) {
+		if (rule != null && !DiamondPadding.isPaddingLabel(rule.label())) {
+			rulesResult.add(rule);
+		}
+	}
+
+	/**
+	 * Composes two identity branches without joining their rules. Returns 
+	 * null if one of them is not an identity branch.
+	 */
+	private IdentityBranch composeIdentities(final IdentityBranch identity1,
+			final IdentityBranch identity2) {
+		if (identity1 == null || identity2 == null) {
+			return null;
+		}
+		return IdentityBranch.compose(identity1, identity2, 
+			this.productStates.product(identity1.state(), identity2.state()));
+	}
+
+	/**
+	 * Computes the composition of two sets of rules of a branch, keeping only
+	 * the rules whose left states are reachable from the leaves. The rules
+	 * are built bottom-up: a pair of rules is only considered once one of
+	 * the product states it needs has been reached.
+	 * @param rules1 first set of rules
+	 * @param rules2 second set of rules
+	 * @param reachedStates filled with the states reached in this branch
+	 * @return set of reachable rules resulting from the composition
+	 */
+	public Set<IRule<LabelPair, FilterState>> composeReachable(
+			final Set<IRule<LabelPair, FilterState>> rules1,
+			final Set<IRule<LabelPair, FilterState>> rules2,
+			final Set<FilterState> reachedStates) {
+		return composeReachable(rules1, rules2, false, reachedStates);
+	}
+
+	/**
+	 * Computes the reachable part of the composition of two sets of rules of
+	 * a branch, like {@link #composeReachable(Set, Set, Set)}.
+	 * @param rules1 first set of rules
+	 * @param rules2 second set of rules
+	 * @param padded if true, the padding rules of the branch are added to
+	 *   both sets of rules (see {@link DiamondPadding})
+	 * @param reachedStates filled with the states reached in this branch
+	 * @return set of reachable rules resulting from the composition
+	 */
+	public Set<IRule<LabelPair, FilterState>> composeReachable(
+			final Set<IRule<LabelPair, FilterState>> rules1,
+			final Set<IRule<LabelPair, FilterState>> rules2,
+			final boolean padded,
+			final Set<FilterState> reachedStates) {
+
+		final IdentityBranch identity = composeIdentities(
+				IdentityBranch.of(rules1), IdentityBranch.of(rules2));
+		if (identity != null) {
+			// all the states of an identity branch are reachable, including
+			// the product of the diamond states (the rules using it are
+			// not kept in the result)
+			reachedStates.add(identity.state());
+			final FilterState diamond1 =
+				((IdentityBranch)rules1).diamondState();
+			if (diamond1 != null) {
+				reachedStates.add(this.productStates.product(diamond1,
+						((IdentityBranch)rules2).diamondState()));
+			}
+			if (padded) {
+				reachedStates.add(this.productStates.product(
+						Q_DIAMOND, Q_DIAMOND));
+			}
+			return identity;
+		}
+		Set<IRule<LabelPair, FilterState>> rulesResult =
+			new HashSet<IRule<LabelPair, FilterState>>();
+		final List<PackedRule> packedRules1 =
+			PackedRule.pack(rules1, this.codec, padded);
+		final List<PackedRule> packedRules2 =
+			PackedRule.pack(rules2, this.codec, padded);
+		final RuleIndex index2 = new RuleIndex(packedRules2);
+		final Map<FilterState, List<PackedRule>> rules1ByLeftState =
+			rulesByLeftState(packedRules1);
+		final Map<FilterState, List<PackedRule>> rules2ByLeftState =
+			rulesByLeftState(packedRules2);
+		Map<Integer, List<PackedRule>> leaves1ByRightLabel =
+			new HashMap<Integer, List<PackedRule>>();
+		for (PackedRule rule1 : packedRules1) {
+			if (rule1.arity()==0) {
+				addToList(leaves1ByRightLabel, rule1.right(), rule1);
+			}
+		}
+		LinkedList<FilterState> agenda = new LinkedList<FilterState>();
+
+		// leaves: a composed rule has no left state only if its label has
+		// arity 0.
+		final Set<Integer> leafLeftLabels = leafLeftLabels();
+		for (PackedRule rule1 : packedRules1) {
+			if (leafLeftLabels.contains(rule1.left())) {
+				for (PackedRule rule2 :
+					index2.composableRules(rule1.right(), rule1.arity())) {
+					final IRule<LabelPair, FilterState> rule =
+						composeRules(rule1, rule2);
+					if (rule != null && rule.leftStates().isEmpty()) {
+						addReachableRule(rule, rulesResult, reachedStates,
+								agenda);
+					}
+				}
+			}
+		}
+
+		// other rules, triggered by the states reached so far
+		while (!agenda.isEmpty()) {
+			final FilterState state = agenda.removeFirst();
+			final IState state1 = state.getLeftState();
+			final IState state2 = state.getRightState();
+			final List<PackedRule> rules1Using = rules1ByLeftState.get(state1);
+			if (rules1Using != null) {
+				for (PackedRule rule1 : rules1Using) {
+					final int arity = rule1.arity();
+					for (int i=0;i<arity;i++) {
+						if (rule1.rule.leftStates().get(i).equals(state1)) {
+							for (PackedRule rule2 :
+								index2.rules(rule1.right(), arity)) {
+								if (rule2.rule.leftStates().get(i)
+										.equals(state2)) {
+									tryRule(rule1, rule2, rulesResult,
+										reachedStates, agenda);
+								}
+							}
+						}
+					}
+					if (arity==1 && Q_DIAMOND.equals(state2)) {
+						for (PackedRule rule2 : index2.rules(rule1.right(), 0)) {
+							tryRule(rule1, rule2, rulesResult,
+								reachedStates, agenda);
+						}
+					}
+				}
+			}
+			final List<PackedRule> rules2Using = rules2ByLeftState.get(state2);
+			if (Q_DIAMOND.equals(state1) && rules2Using != null) {
+				for (PackedRule rule2 : rules2Using) {
+					final List<PackedRule> leaves1 =
+						leaves1ByRightLabel.get(rule2.left());
+					if (rule2.arity()==1 && leaves1 != null) {
+						for (PackedRule rule1 : leaves1) {
+							tryRule(rule1, rule2, rulesResult,
+								reachedStates, agenda);
+						}
+					}
+				}
+			}
+		}
+		return rulesResult;
+	}
+
+	/**
+	 * Computes the composition of the rules at the root, keeping only the
+	 * rules whose left states have all been reached in the branches.
+	 */
+	public Set<IRule<LabelPair, FilterState>> composeRootReachable(
+			final Set<IRule<LabelPair, FilterState>> rules1,
+			final Set<IRule<LabelPair, FilterState>> rules2,
+			final Set<FilterState> reachedStates) {
+		Set<IRule<LabelPair, FilterState>> rulesResult =
+			new HashSet<IRule<LabelPair, FilterState>>();
+		final RuleIndex index2 =
+			new RuleIndex(PackedRule.pack(rules2, this.codec));
+		for (PackedRule rule1 : PackedRule.pack(rules1, this.codec)) {
+			for (PackedRule rule2 :
+				index2.rules(rule1.right(), rule1.arity())) {
+				final IRule<LabelPair, FilterState> rule =
+					composeRules(rule1, rule2);
+				if (rule != null &&
+						reachedStates.containsAll(rule.leftStates())) {
+					addComposedRule(rule, rulesResult);
+				}
+			}
+		}
+		return rulesResult;
+	}
+
+	/**
+	 * Composes two rules and adds the result if all its left states have
+	 * been reached.
+	 */
+	private void tryRule(final PackedRule rule1, final PackedRule rule2,
+			final Set<IRule<LabelPair, FilterState>> rulesResult,
+			final Set<FilterState> reachedStates,
+			final List<FilterState> agenda) {
+		final IRule<LabelPair, FilterState> rule = composeRules(rule1, rule2);
+		if (rule != null && reachedStates.containsAll(rule.leftStates())) {
+			addReachableRule(rule, rulesResult, reachedStates, agenda);
+		}
+	}
+
+	/**
+	 * Adds a reachable rule to the result, and its right state to the reached
+	 * states. A rule with a (diamond,diamond) label is not kept, but the
+	 * states it reaches are needed by the other rules.
+	 */
+	private static void addReachableRule(
+			final IRule<LabelPair, FilterState> rule,
+			final Set<IRule<LabelPair, FilterState>> rulesResult,
+			final Set<FilterState> reachedStates,
+			final List<FilterState> agenda) {
+		addComposedRule(rule, rulesResult);
+		if (reachedStates.add(rule.rightState())) {
+			agenda.add(rule.rightState());
+		}
+	}
+
+	/**
+	 * Codes of the left components of the labels of arity 0. Threads
+	 * composing different branches may both compute them.
+	 */
+	private Set<Integer> leafLeftLabels() {
+		if (this.leafLeftLabels == null) {
+			Set<Integer> labels = new HashSet<Integer>();
+			for (LabelPair label : this.alphabet.getLabelsOfArity(0)) {
+				labels.add(this.codec.encode(label.left()));
+			}
+			this.leafLeftLabels = labels;
+		}
+		return this.leafLeftLabels;
+	}
+
+	private static Map<FilterState, List<PackedRule>> rulesByLeftState(
+			final List<PackedRule> rules) {
+		Map<FilterState, List<PackedRule>> rulesByState =
+			new HashMap<FilterState, List<PackedRule>>();
+		for (PackedRule rule : rules) {
+			for (FilterState leftState :
+				new HashSet<FilterState>(rule.rule.leftStates())) {
+				addToList(rulesByState, leftState, rule);
+			}
+		}
+		return rulesByState;
+	}
+
+	private static <K> void addToList(final Map<K, List<PackedRule>> map,
+			final K key, final PackedRule rule) {
+		List<PackedRule> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<PackedRule>();
+			map.put(key, list);
+		}
+		list.add(rule);
+	}
+
+	/**
+	 * Composes two rules whose labels match, ie the right component of the
+	 * label of rule1 is the left component of the label of rule2, and whose
+	 * numbers of left states are compatible. The arity of the composed label
+	 * is checked on its primitive code, so that nothing is allocated for
+	 * pairs of rules that do not compose.
+	 * @return the composed rule, or null if its label does not have the right
+	 *   arity
+	 */
+	private IRule<LabelPair, FilterState> composeRules(
+			final PackedRule packedRule1, final PackedRule packedRule2) {
+		int labelArity = this.alphabet.arity(LabelCodec.pack(
+				packedRule1.left(), packedRule2.right(), false));
+		final IRule<LabelPair, FilterState> rule1 = packedRule1.rule;
+		final IRule<LabelPair, FilterState> rule2 = packedRule2.rule;
+		if (labelArity < 0) {
+			// not in the alphabet: let the alphabet report it
+			labelArity = this.alphabet.arity(new LabelPair(
+					rule1.label().left(), rule2.label().right()));
+		}
+		final int arity1 = packedRule1.arity();
+		final int arity2 = packedRule2.arity();
+		final int leftStatesSize = arity1==0 && arity2==1 ? 1 : arity1;
+		if (labelArity!=leftStatesSize && labelArity!=0) {
+			return null;
+		}
+		final LabelPair label =
+			new LabelPair(rule1.label().left(), rule2.label().right());
+		final FilterState rightState = this.productStates.product(
+				rule1.rightState(), rule2.rightState());
+		if (labelArity!=leftStatesSize) {
+			return new BasicRule<LabelPair, FilterState>(
+					new ArrayList<FilterState>(), label, rightState);
+		}
+		List<FilterState> leftStatesResult =
+			new ArrayList<FilterState>(leftStatesSize);
+		if (arity1==0 && arity2==1) {
+			leftStatesResult.add(this.productStates.product(
+					Q_DIAMOND, rule2.leftStates().get(0)));
+		} else if (arity1==1 && arity2==0) {
+			leftStatesResult.add(this.productStates.product(
+					rule1.leftStates().get(0), Q_DIAMOND));
+		} else {
+			for (int i=0;i<arity1;i++) {
+				leftStatesResult.add(
+						this.productStates.product(rule1.leftStates().get(i),
+						rule2.leftStates().get(i)));
+			}
+		}
+		return new BasicRule<LabelPair, FilterState>(
+				leftStatesResult, label, rightState);
+	}
+
+	/**
+	 * Removes the rules allowing (diamond,diamond) labels below leaves.
+	 */
+	static Set<IRule<LabelPair, FilterState>> cleanDiamondRules(
+			final Set<IRule<LabelPair, FilterState>> rules) {
+		Set<IRule<LabelPair, FilterState>> rulesResult =
+			new HashSet<IRule<LabelPair, FilterState>>();
+
+		for (IRule<LabelPair, FilterState> rule : rules) {
+			if (!rule.label().equals(ActionAlphabet.DIAMONDDIAMOND) &&
+				!rule.label().equals(ActionAlphabet.DIAMONDDIAMOND1)) {
+				if (rule.label() instanceof UnaryVersionLabelPair) {
+					final LabelPair label0 =
+						((UnaryVersionLabelPair)rule.label())
+						.getBooleanVersion();
+					rulesResult.add(new BasicRule<LabelPair, FilterState>(
+						new ArrayList<FilterState>(),
+						label0,rule.rightState()));
+				} else{
+					rulesResult.add(rule);
+				}
+			}
+		}
+		return rulesResult;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of a set of rules, by the left component of their label and by the
+ * number of their left states. It is used to join two sets of rules when
+ * computing a composition: a rule (q1,...,qn) -- (a,b) --> q can only be
+ * composed with rules whose label is (b,c). Labels are taken in their
+ * primitive encoding (see {@link LabelCodec}).
+ */
+class RuleIndex {
+
+	private final LongIntHashMap bucketByKey;
+	private final List<List<PackedRule>> buckets;
+
+	/**
+	 * Constructor, indexing a set of rules.
+	 */
+	RuleIndex(final List<PackedRule> rules) {
+		this.bucketByKey = new LongIntHashMap();
+		this.buckets = new ArrayList<List<PackedRule>>();
+		for (PackedRule rule : rules) {
+			final long key = key(rule.left(), rule.arity());
+			int bucket = this.bucketByKey.putIfAbsent(key, this.buckets.size());
+			if (bucket == this.buckets.size()) {
+				this.buckets.add(new ArrayList<PackedRule>());
+			}
+			this.buckets.get(bucket).add(rule);
+		}
+	}
+
+	/**
+	 * Returns the rules whose label is (leftLabel,c) for some c, and whose
+	 * number of left states is exactly the given one.
+	 */
+	List<PackedRule> rules(final int leftLabel, final int arity) {
+		final int bucket = this.bucketByKey.get(key(leftLabel, arity), -1);
+		if (bucket < 0) {
+			return Collections.emptyList();
+		}
+		return this.buckets.get(bucket);
+	}
+
+	/**
+	 * Returns the rules that can be composed with a rule whose label is
+	 * (a,rightLabel) and which has the given number of left states. Both
+	 * rules must have the same number of left states, except that a leaf
+	 * may be composed with a unary rule (and conversely).
+	 */
+	List<PackedRule> composableRules(final int rightLabel, final int arity) {
+		final List<PackedRule> sameArity = rules(rightLabel, arity);
+		final List<PackedRule> otherArity;
+		if (arity==0) {
+			otherArity = rules(rightLabel, 1);
+		} else if (arity==1) {
+			otherArity = rules(rightLabel, 0);
+		} else {
+			otherArity = Collections.emptyList();
+		}
+		if (otherArity.isEmpty()) {
+			return sameArity;
+		} else if (sameArity.isEmpty()) {
+			return otherArity;
+		}
+		List<PackedRule> composable =
+			new ArrayList<PackedRule>(sameArity.size()+otherArity.size());
+		composable.addAll(sameArity);
+		composable.addAll(otherArity);
+		return composable;
+	}
+
+	private static long key(final int label, final int arity) {
+		return ((long)label << 32) | arity;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package be.ac.umons.info.routing.automata;
+
+/**
+ * The ways of reducing the intermediate automata built while composing the
+ * automata of the rules of a filter (see Filter.automaton(RouteAlphabet, 
+ * StateReduction)). The option is given for each build, so that concurrent
+ * builds do not depend on each other.
+ */
+public enum StateReduction {
+
+	/**
+	 * Keeps the pairs of states built by the compositions.
+	 */
+	NONE,
+
+	/**
+	 * Renames the states with integers (see {@link StateRenumbering}), so 
+	 * that the states of the next compositions are not nested pairs.
+	 */
+	RENUMBER,
+
+	/**
+	 * Merges the bisimilar states (see FilterAutomaton.minimize()), so that
+	 * the next compositions start from smaller automata.
+	 */
+	MINIMIZE;
+
+	/**
+	 * Returns the given automaton, reduced in this way.
+	 */
+	public FilterAutomaton reduce(final FilterAutomaton automaton) {
+		if (this == RENUMBER) {
+			return automaton.renumberStates();
+		}
+		if (this == MINIMIZE) {
+			return automaton.minimize();
+		}
+		return automaton;
+	}
+}
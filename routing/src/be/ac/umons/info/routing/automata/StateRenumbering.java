@@ -0,0 +1,168 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.automata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import traul.ranked.nta.rules.BasicRule;
+import traul.ranked.nta.rules.IRule;
+import traul.ranked.nta.states.BasicState;
+
+/**
+ * Renames the states of a filter automaton with integers. Composing automata
+ * nests their states into pairs, so that hashing or comparing a state costs
+ * as much as the number of composed automata; renumbered states are compared
+ * in constant time. The original states can be kept in a side table, for
+ * debugging.
+ */
+public class StateRenumbering {
+
+	private final FilterAutomaton automaton;
+	private final Map<FilterState, FilterState> provenance;
+
+	/**
+	 * Renumbers the states of an automaton, without keeping the original
+	 * states.
+	 */
+	public StateRenumbering(final FilterAutomaton original) {
+		this(original, false);
+	}
+
+	/**
+	 * Renumbers the states of an automaton.
+	 * @param original the automaton to be renumbered
+	 * @param keepProvenance if true, the original state of each new state is
+	 *   kept and can be retrieved by {@link #originalState(FilterState)}
+	 */
+	public StateRenumbering(final FilterAutomaton original,
+			final boolean keepProvenance) {
+		Map<FilterState, FilterState> renamed =
+			new HashMap<FilterState, FilterState>();
+		if (keepProvenance) {
+			this.provenance = new HashMap<FilterState, FilterState>();
+		} else {
+			this.provenance = null;
+		}
+		// the sink gets number 0
+		final FilterState sink = rename(original.sinkState(), renamed);
+		Set<FilterState> states = new HashSet<FilterState>();
+		for (FilterState state : original.getStates()) {
+			states.add(rename(state, renamed));
+		}
+		states.add(sink);
+		Set<FilterState> finalStates = new HashSet<FilterState>();
+		for (FilterState state : original.getFinalStates()) {
+			finalStates.add(rename(state, renamed));
+		}
+		final Set<IRule<LabelPair, FilterState>> rulesDest =
+			renameRules(original.getRulesDest(), renamed, states);
+		final Set<IRule<LabelPair, FilterState>> rulesPath =
+			renameRules(original.getRulesPath(), renamed, states);
+		final Set<IRule<LabelPair, FilterState>> rulesPref =
+			renameRules(original.getRulesPref(), renamed, states);
+		final Set<IRule<LabelPair, FilterState>> rulesCom =
+			renameRules(original.getRulesCom(), renamed, states);
+		final Set<IRule<LabelPair, FilterState>> rulesMod =
+			renameRules(original.getRulesMod(), renamed, states);
+		final Set<IRule<LabelPair, FilterState>> rulesRoot =
+			renameRules(original.getRulesRoot(), renamed, states);
+		this.automaton = new FilterAutomaton(original.getActionAlphabet(),
+			states, finalStates, sink, rulesDest, rulesPath, rulesPref,
+			rulesCom, rulesMod, rulesRoot);
+	}
+
+	/**
+	 * Returns the renumbered automaton.
+	 */
+	public FilterAutomaton automaton() {
+		return this.automaton;
+	}
+
+	/**
+	 * Returns the state of the original automaton that has been renamed into
+	 * the given state, or null if it is unknown or if provenance has not
+	 * been kept.
+	 */
+	public FilterState originalState(final FilterState state) {
+		if (this.provenance == null) {
+			return null;
+		}
+		return this.provenance.get(state);
+	}
+
+	/**
+	 * Returns the map from renumbered states to original states, which is
+	 * empty if provenance has not been kept.
+	 */
+	public Map<FilterState, FilterState> provenance() {
+		if (this.provenance == null) {
+			return Collections.emptyMap();
+		}
+		return Collections.unmodifiableMap(this.provenance);
+	}
+
+	private FilterState rename(final FilterState state,
+			final Map<FilterState, FilterState> renamed) {
+		FilterState newState = renamed.get(state);
+		if (newState == null) {
+			newState = new FilterState(new BasicState(renamed.size()));
+			renamed.put(state, newState);
+			if (this.provenance != null) {
+				this.provenance.put(newState, state);
+			}
+		}
+		return newState;
+	}
+
+	private Set<IRule<LabelPair, FilterState>> renameRules(
+			final Set<IRule<LabelPair, FilterState>> rules,
+			final Map<FilterState, FilterState> renamed,
+			final Set<FilterState> states) {
+		// an identity branch is kept as such, with its state renamed
+		final IdentityBranch identity = IdentityBranch.of(rules);
+		if (identity != null && identity.diamondState() == null) {
+			final FilterState newState = rename(identity.state(), renamed);
+			states.add(newState);
+			return identity.withState(newState);
+		}
+		Set<IRule<LabelPair, FilterState>> newRules =
+			new HashSet<IRule<LabelPair, FilterState>>();
+		for (IRule<LabelPair, FilterState> rule : rules) {
+			List<FilterState> leftStates =
+				new ArrayList<FilterState>(rule.leftStates().size());
+			for (FilterState leftState : rule.leftStates()) {
+				final FilterState newState = rename(leftState, renamed);
+				states.add(newState);
+				leftStates.add(newState);
+			}
+			final FilterState rightState = rename(rule.rightState(), renamed);
+			states.add(rightState);
+			newRules.add(new BasicRule<LabelPair, FilterState>(
+				leftStates, rule.label(), rightState));
+		}
+		return newRules;
+	}
+}
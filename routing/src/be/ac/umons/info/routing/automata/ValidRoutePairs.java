@@ -138,8 +138,8 @@ public class ValidRoutePairs {
 				intStatesCom.get(i), qMod));
 		}
 
-		return new FilterAutomaton(new ActionAlphabet(routeAlphabet), states, 
-				Collections.singleton(qRoot), sink,
+		return new FilterAutomaton(AlphabetCache.actionAlphabet(routeAlphabet),
+				states, Collections.singleton(qRoot), sink,
 				rulesDest, rulesPath, rulesPref, rulesCom, rulesMod, rulesRoot);
 	}
 }
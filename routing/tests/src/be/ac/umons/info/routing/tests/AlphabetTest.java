@@ -30,7 +30,11 @@ import be.ac.umons.info.routing.Filter;
 import be.ac.umons.info.routing.actions.IAction;
 import be.ac.umons.info.routing.actions.atomic.PathPrepend;
 import be.ac.umons.info.routing.actions.atomic.PrefSet;
+import be.ac.umons.info.routing.automata.ActionAlphabet;
+import be.ac.umons.info.routing.automata.AlphabetCache;
 import be.ac.umons.info.routing.automata.IntegerLabel;
+import be.ac.umons.info.routing.automata.LabelCodec;
+import be.ac.umons.info.routing.automata.LabelPair;
 import be.ac.umons.info.routing.automata.RouteAlphabet;
 import be.ac.umons.info.routing.predicates.IPredicate;
 import be.ac.umons.info.routing.predicates.atomic.PathIn;
@@ -187,4 +191,108 @@ public class AlphabetTest extends TestCase {
 			correctRouteAlphabet, routeAlphabet);
 	}
 
+
+	/**
+	 * Tests that labels of an action alphabet are encoded and decoded back,
+	 * and that the arity of encoded labels is the arity of the labels.
+	 */
+	public void testPackedLabels() {
+		final Set<IntegerLabel> values = new HashSet<IntegerLabel>();
+		values.add(new IntegerLabel(-5));
+		values.add(new IntegerLabel(70));
+		values.add(new IntegerLabel(Integer.MAX_VALUE));
+		final ActionAlphabet alphabet = new ActionAlphabet(
+			new RouteAlphabet(values, values, values, values));
+		final LabelCodec codec = alphabet.labelCodec();
+
+		for (LabelPair label : alphabet.getSymbols().keySet()) {
+			final long code = codec.encode(label);
+			assertEquals("The label should be decoded back.",
+				label, codec.decode(code));
+			assertEquals("The arity of the code should be the arity.",
+				alphabet.arity(label).intValue(), alphabet.arity(code));
+		}
+		assertEquals("Unknown labels should have no arity.", -1,
+			alphabet.arity(codec.encode(ActionAlphabet.integerinteger(3, 4))));
+	}
+
+	/**
+	 * Tests that pairs of integers, which are not stored in the action
+	 * alphabet, are found and enumerated as if they were.
+	 */
+	public void testIntegerPairsOfActionAlphabet() {
+		final Set<IntegerLabel> destValues = new HashSet<IntegerLabel>();
+		destValues.add(new IntegerLabel(1));
+		destValues.add(new IntegerLabel(2));
+		final Set<IntegerLabel> comValues = new HashSet<IntegerLabel>();
+		comValues.add(new IntegerLabel(2));
+		comValues.add(new IntegerLabel(3));
+		final Set<IntegerLabel> prefValues = new HashSet<IntegerLabel>();
+		prefValues.add(new IntegerLabel(100));
+		final ActionAlphabet alphabet = new ActionAlphabet(new RouteAlphabet(
+			destValues, new HashSet<IntegerLabel>(), prefValues, comValues));
+
+		final Set<LabelPair> pairs = new HashSet<LabelPair>();
+		pairs.add(ActionAlphabet.integerinteger(1, 1));
+		pairs.add(ActionAlphabet.integerinteger(2, 2));
+		pairs.add(ActionAlphabet.integerinteger(2, 3));
+		pairs.add(ActionAlphabet.integerinteger(3, 2));
+		pairs.add(ActionAlphabet.integerinteger(3, 3));
+		pairs.add(ActionAlphabet.integerinteger(100, 100));
+		for (LabelPair pair : pairs) {
+			assertEquals(1, alphabet.arity(pair).intValue());
+			assertTrue(alphabet.getSymbols().containsKey(pair));
+		}
+		assertFalse(alphabet.getSymbols().containsKey(
+			ActionAlphabet.integerinteger(1, 2)));
+		assertFalse(alphabet.getSymbolsOfArity(1).contains(
+			ActionAlphabet.integerinteger(2, 100)));
+
+		final Set<LabelPair> enumerated = new HashSet<LabelPair>();
+		int count = 0;
+		for (LabelPair label : alphabet.getSymbolsOfArity(1)) {
+			if (label.left() instanceof IntegerLabel &&
+					label.right() instanceof IntegerLabel) {
+				enumerated.add(label);
+			}
+			count++;
+		}
+		assertEquals("Each pair should be enumerated once.", pairs, enumerated);
+		assertEquals(alphabet.getSymbolsOfArity(1).size(), count);
+		assertEquals(new HashSet<LabelPair>(alphabet.getSymbols().keySet())
+			.size(), alphabet.getSymbols().size());
+	}
+
+	/**
+	 * Tests that alphabets with the same labels are shared by the cache.
+	 */
+	public void testAlphabetCache() {
+		final Filter filter = new Filter(new PathPrepend(20), new PrefSet(50));
+		final RouteAlphabet alphabet1 =
+			AlphabetCache.routeAlphabet(filter.filterAlphabet());
+		final RouteAlphabet alphabet2 =
+			AlphabetCache.routeAlphabet(filter.filterAlphabet());
+		assertSame("Equal alphabets should be shared.", alphabet1, alphabet2);
+		assertSame("Action alphabets should be shared.",
+			AlphabetCache.actionAlphabet(filter.filterAlphabet()),
+			AlphabetCache.actionAlphabet(alphabet2));
+		assertNotSame(AlphabetCache.actionAlphabet(alphabet1),
+			AlphabetCache.actionAlphabet(alphabet1, true));
+		assertNotSame(alphabet1, AlphabetCache.routeAlphabet(
+			new PathPrepend(21).filterAlphabet()));
+		try {
+			alphabet1.asPathAlphabet().add(new IntegerLabel(30));
+			fail("Shared alphabets should not be modifiable.");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		// the least recently used alphabets are evicted
+		for (int i=0; i<AlphabetCache.CAPACITY; i++) {
+			AlphabetCache.routeAlphabet(new PrefSet(1000+i).filterAlphabet());
+		}
+		final RouteAlphabet alphabet3 =
+			AlphabetCache.routeAlphabet(filter.filterAlphabet());
+		assertNotSame(alphabet1, alphabet3);
+		assertEquals(alphabet1.comAlphabet(), alphabet3.comAlphabet());
+	}
 }
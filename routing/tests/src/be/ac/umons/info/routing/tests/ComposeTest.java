@@ -20,19 +20,38 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package be.ac.umons.info.routing.tests;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import junit.framework.TestCase;
 import be.ac.umons.info.routing.Filter;
+import be.ac.umons.info.routing.FilterRule;
+import be.ac.umons.info.routing.ModFilterRule;
+import be.ac.umons.info.routing.actions.IAction;
+import be.ac.umons.info.routing.actions.atomic.Accept;
 import be.ac.umons.info.routing.actions.atomic.ComAdd;
 import be.ac.umons.info.routing.actions.atomic.ComRemove;
 import be.ac.umons.info.routing.actions.atomic.PathPrepend;
 import be.ac.umons.info.routing.actions.atomic.PrefAdd;
 import be.ac.umons.info.routing.actions.atomic.PrefSet;
 import be.ac.umons.info.routing.automata.ActionAlphabet;
+import be.ac.umons.info.routing.automata.AlphabetCache;
 import be.ac.umons.info.routing.automata.FilterAutomaton;
+import be.ac.umons.info.routing.automata.FilterState;
 import be.ac.umons.info.routing.automata.LabelPair;
+import be.ac.umons.info.routing.automata.QuasiRoutes;
 import be.ac.umons.info.routing.automata.RouteAlphabet;
+import be.ac.umons.info.routing.automata.RuleComposition;
+import be.ac.umons.info.routing.automata.StateReduction;
+import be.ac.umons.info.routing.automata.StateRenumbering;
+import be.ac.umons.info.routing.automata.ValidRoutePairs;
+import be.ac.umons.info.routing.predicates.atomic.CommIn;
+import be.ac.umons.info.routing.predicates.atomic.PathIn;
+import traul.ranked.nta.rules.BasicRule;
+import traul.ranked.nta.rules.IRule;
 import traul.ranked.terms.ITerm;
 
 public class ComposeTest extends TestCase {
@@ -618,4 +637,413 @@ public class ComposeTest extends TestCase {
 				automaton.accepts(tree3));
 		}
 	}
+
+	/**
+	 * Tests that the indexed composition of rules gives the same rules as the
+	 * composition of every pair of rules, on each branch.
+	 */
+	public void testIndexedCompositionEqualsPairwise() {
+		final Filter filter = new Filter(new ComAdd(10), new ComRemove(20),
+				new PrefSet(130), new PathPrepend(3));
+		final RouteAlphabet routeAlphabet = filter.filterAlphabet();
+		final ActionAlphabet alphabet = new ActionAlphabet(routeAlphabet);
+		final FilterAutomaton automaton1 = new ComAdd(10)
+			.automaton(routeAlphabet, alphabet).addDiamondRules();
+		final FilterAutomaton automaton2 = filter.automaton(routeAlphabet)
+			.addDiamondRules();
+		final RuleComposition composition = new RuleComposition(alphabet);
+
+		assertComposition(automaton1, alphabet, composition,
+			automaton1.getRulesDest(), automaton2.getRulesDest());
+		assertComposition(automaton1, alphabet, composition,
+			automaton1.getRulesPath(), automaton2.getRulesPath());
+		assertComposition(automaton1, alphabet, composition,
+			automaton1.getRulesPref(), automaton2.getRulesPref());
+		assertComposition(automaton1, alphabet, composition,
+			automaton1.getRulesCom(), automaton2.getRulesCom());
+		assertComposition(automaton1, alphabet, composition,
+			automaton1.getRulesMod(), automaton2.getRulesMod());
+		assertComposition(automaton1, alphabet, composition,
+			automaton1.getRulesRoot(), automaton2.getRulesRoot());
+	}
+
+	/**
+	 * Tests that padding the PATH and COM branches with diamonds on the fly
+	 * gives the same rules as composing automata with their diamond rules.
+	 */
+	public void testPaddedCompositionEqualsDiamondRules() {
+		final Filter filter = new Filter(new ComAdd(10), new ComRemove(20),
+				new PathPrepend(3));
+		final RouteAlphabet routeAlphabet = filter.filterAlphabet();
+		final ActionAlphabet alphabet = new ActionAlphabet(routeAlphabet);
+		final FilterAutomaton automaton1 = new PathPrepend(3)
+			.automaton(routeAlphabet, alphabet);
+		final FilterAutomaton automaton2 = filter.automaton(routeAlphabet);
+		final RuleComposition composition = new RuleComposition(alphabet);
+
+		assertEquals(
+			composition.compose(automaton1.addDiamondRules().getRulesPath(),
+				automaton2.addDiamondRules().getRulesPath()),
+			composition.compose(automaton1.getRulesPath(),
+				automaton2.getRulesPath(), true));
+		assertEquals(
+			composition.compose(automaton2.addDiamondRules().getRulesCom(),
+				automaton1.addDiamondRules().getRulesCom()),
+			composition.compose(automaton2.getRulesCom(),
+				automaton1.getRulesCom(), true));
+		assertEquals(
+			composition.compose(automaton1.addDiamondRules().getRulesCom(),
+				automaton1.addDiamondRules().getRulesCom()),
+			composition.compose(automaton1.getRulesCom(),
+				automaton1.getRulesCom(), true));
+		assertTrue("The filter should be equivalent to itself.",
+			automaton2.equivalent(automaton2));
+		assertNotNull(automaton2.separationRoute(
+			automaton1.compose(automaton2)));
+	}
+
+	/**
+	 * Tests the composition of branches encoding the identity, with each 
+	 * other and with other branches.
+	 */
+	public void testIdentityBranchComposition() {
+		final Filter filter = new Filter(new PathPrepend(3), new PrefSet(130));
+		final RouteAlphabet routeAlphabet = filter.filterAlphabet();
+		final ActionAlphabet alphabet = new ActionAlphabet(routeAlphabet);
+		final FilterAutomaton automaton1 = new PathPrepend(3)
+			.automaton(routeAlphabet, alphabet).addDiamondRules();
+		final FilterAutomaton automaton2 = new PrefSet(130)
+			.automaton(routeAlphabet, alphabet).addDiamondRules();
+		final RuleComposition composition = new RuleComposition(alphabet);
+
+		assertComposition(automaton1, alphabet, composition,
+			automaton1.getRulesDest(), automaton2.getRulesDest());
+		assertComposition(automaton1, alphabet, composition,
+			automaton1.getRulesPath(), automaton2.getRulesPath());
+		assertComposition(automaton1, alphabet, composition,
+			automaton2.getRulesPath(), automaton1.getRulesPath());
+		assertComposition(automaton1, alphabet, composition,
+			automaton1.getRulesPref(), automaton2.getRulesPref());
+		assertComposition(automaton1, alphabet, composition,
+			automaton1.getRulesCom(), automaton2.getRulesCom());
+
+		final FilterAutomaton automaton = filter.automaton(routeAlphabet);
+		assertEquals(automaton.getRulesCom(),
+			automaton.cleanInaccessibleStates().getRulesCom());
+		assertTrue("The filter should be equivalent to itself.",
+			automaton.equivalent(automaton.cleanInaccessibleStates()));
+
+		// the identity is a view, whose rules are stored once modified
+		final FilterState state = new FilterState("q");
+		final Set<IRule<LabelPair, FilterState>> identity = 
+			QuasiRoutes.pathPairBranch(routeAlphabet, state);
+		final Set<IRule<LabelPair, FilterState>> rules = 
+			new HashSet<IRule<LabelPair, FilterState>>(identity);
+		assertEquals(rules, identity);
+		assertEquals(rules.size(), identity.size());
+		final IRule<LabelPair, FilterState> rule = 
+			new BasicRule<LabelPair, FilterState>(
+				ActionAlphabet.integerinteger(3, 3), state, state);
+		assertTrue(identity.contains(rule));
+		assertFalse(identity.add(rule));
+		final IRule<LabelPair, FilterState> prepend = 
+			new BasicRule<LabelPair, FilterState>(
+				ActionAlphabet.integerinteger(3, 4), state, state);
+		assertFalse(identity.contains(prepend));
+		assertTrue(identity.add(prepend));
+		assertTrue(identity.contains(prepend));
+		assertEquals(rules.size()+1, identity.size());
+	}
+
+	/**
+	 * Tests that composing the branches in parallel gives the same automata.
+	 */
+	public void testParallelComposition() {
+		final Filter filter = FilterProvider.complexComAddAccept(3, 10);
+		final RouteAlphabet routeAlphabet = filter.filterAlphabet();
+		final FilterAutomaton automaton1 = filter.automaton(routeAlphabet);
+		final FilterAutomaton automaton2 = new ComRemove(10)
+			.automaton(routeAlphabet, automaton1.getActionAlphabet());
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			assertSameAutomaton(automaton2.compose(automaton1),
+				automaton2.compose(automaton1, pool));
+			assertSameAutomaton(automaton2.composeReachable(automaton1),
+				automaton2.composeReachable(automaton1, pool));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that minimizing the intermediate automata of a filter gives an
+	 * equivalent automaton, which is not larger.
+	 */
+	public void testMinimizedAutomatonIsEquivalent() {
+		final Filter filter = new Filter(new ComAdd(10), new ComRemove(20),
+				new PrefSet(130), new PathPrepend(3));
+		final RouteAlphabet alphabet = filter.filterAlphabet();
+		final FilterAutomaton automaton = filter.automaton(alphabet);
+		final FilterAutomaton minimized = automaton.minimize();
+		assertTrue(minimized.getStates().size() <= 
+			automaton.getStates().size());
+		assertTrue("The minimized automaton should be equivalent.",
+			automaton.equivalent(minimized));
+
+		final FilterAutomaton minimizedSteps = 
+			filter.automaton(alphabet, StateReduction.MINIMIZE);
+		assertEquals(minimizedSteps.minimize().getStates().size(), 
+			minimizedSteps.getStates().size());
+		assertTrue("The automata should be equivalent.",
+			automaton.equivalent(minimizedSteps));
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			final FilterAutomaton minimizedInPool = 
+				filter.automaton(alphabet, pool, StateReduction.MINIMIZE);
+			assertEquals(minimizedInPool.minimize().getStates().size(), 
+				minimizedInPool.getStates().size());
+			assertTrue("The automata should be equivalent.",
+				automaton.equivalent(minimizedInPool));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that minimization merges states whose contexts only differ by 
+	 * equivalent siblings: (d1,m1) and (d2,m2) are both merged.
+	 */
+	public void testMinimizeMergesBisimilarSiblings() {
+		final RouteAlphabet alphabet = 
+			new Filter(new ComAdd(10)).filterAlphabet();
+		final FilterState q0 = new FilterState("q0");
+		final FilterState d1 = new FilterState("d1");
+		final FilterState d2 = new FilterState("d2");
+		final FilterState m1 = new FilterState("m1");
+		final FilterState m2 = new FilterState("m2");
+		final FilterState qOK = new FilterState("qOK");
+		final FilterState sink = new FilterState("sink");
+		final Set<FilterState> states = new HashSet<FilterState>();
+		for (FilterState state : new FilterState[] {
+				q0, d1, d2, m1, m2, qOK, sink}) {
+			states.add(state);
+		}
+		final Set<IRule<LabelPair,FilterState>> rulesDest = 
+			new HashSet<IRule<LabelPair,FilterState>>(
+				QuasiRoutes.destPairBranch(alphabet, d1));
+		rulesDest.addAll(QuasiRoutes.destPairBranch(alphabet, d2));
+		final Set<IRule<LabelPair,FilterState>> rulesMod = 
+			new HashSet<IRule<LabelPair,FilterState>>();
+		for (FilterState m : new FilterState[] {m1, m2}) {
+			rulesMod.add(new BasicRule<LabelPair,FilterState>(
+				ActionAlphabet.ACCMOD, m));
+			rulesMod.add(new BasicRule<LabelPair,FilterState>(
+				ActionAlphabet.REJREJ, m));
+		}
+		final Set<IRule<LabelPair,FilterState>> rulesRoot = 
+			new HashSet<IRule<LabelPair,FilterState>>();
+		rulesRoot.add(new BasicRule<LabelPair,FilterState>(
+			ActionAlphabet.RR, qOK, d1, q0, q0, q0, m1));
+		rulesRoot.add(new BasicRule<LabelPair,FilterState>(
+			ActionAlphabet.RR, qOK, d2, q0, q0, q0, m2));
+		final FilterAutomaton automaton = new FilterAutomaton(
+			AlphabetCache.actionAlphabet(alphabet, true), states, 
+			Collections.singleton(qOK), sink, rulesDest,
+			QuasiRoutes.pathPairBranch(alphabet, q0),
+			QuasiRoutes.prefPairBranch(alphabet, q0),
+			QuasiRoutes.comPairBranch(alphabet, q0), rulesMod, rulesRoot);
+
+		final FilterAutomaton minimized = automaton.minimize();
+		assertEquals(states.size()-2, minimized.getStates().size());
+		assertEquals(1, minimized.getRulesRoot().size());
+		assertTrue("The minimized automaton should be equivalent.",
+			automaton.equivalent(minimized));
+	}
+
+	private void assertSameAutomaton(final FilterAutomaton expected,
+			final FilterAutomaton actual) {
+		assertEquals(expected.getStates(), actual.getStates());
+		assertEquals(expected.getFinalStates(), actual.getFinalStates());
+		assertEquals(expected.getRulesDest(), actual.getRulesDest());
+		assertEquals(expected.getRulesPath(), actual.getRulesPath());
+		assertEquals(expected.getRulesPref(), actual.getRulesPref());
+		assertEquals(expected.getRulesCom(), actual.getRulesCom());
+		assertEquals(expected.getRulesMod(), actual.getRulesMod());
+		assertEquals(expected.getRulesRoot(), actual.getRulesRoot());
+	}
+
+	private void assertComposition(final FilterAutomaton automaton,
+			final ActionAlphabet alphabet, final RuleComposition composition,
+			final Set<IRule<LabelPair, FilterState>> rules1,
+			final Set<IRule<LabelPair, FilterState>> rules2) {
+		assertEquals("The indexed composition should give the same rules.",
+			PairwiseComposition.compose(automaton, alphabet, rules1, rules2),
+			composition.compose(rules1, rules2));
+	}
+
+	/**
+	 * Tests that composing only the reachable part of two rules gives the
+	 * same automaton as composing them and removing inaccessible states.
+	 */
+	public void testComposeReachableEqualsCleanedCompose() {
+		final List<IAction> actions1 = new ArrayList<IAction>();
+		actions1.add(new PrefSet(80));
+		actions1.add(new ComAdd(10));
+		actions1.add(new Accept());
+		final FilterRule rule1 = new FilterRule(new CommIn(20), actions1);
+		final List<IAction> actions2 = new ArrayList<IAction>();
+		actions2.add(new ComRemove(20));
+		actions2.add(new PathPrepend(3));
+		final FilterRule rule2 = new FilterRule(new PathIn(3), actions2);
+		final RouteAlphabet alphabet =
+			FilterProvider.filterFromRules(rule1, rule2).filterAlphabet();
+
+		final FilterAutomaton automaton1 = rule1.automaton(alphabet);
+		final FilterAutomaton automaton2 = rule2.automaton(alphabet);
+		final FilterAutomaton cleaned =
+			automaton2.compose(automaton1).cleanInaccessibleStates();
+		final FilterAutomaton reachable =
+			automaton2.composeReachable(automaton1);
+
+		assertEquals(cleaned.getRulesDest(), reachable.getRulesDest());
+		assertEquals(cleaned.getRulesPath(), reachable.getRulesPath());
+		assertEquals(cleaned.getRulesPref(), reachable.getRulesPref());
+		assertEquals(cleaned.getRulesCom(), reachable.getRulesCom());
+		assertEquals(cleaned.getRulesMod(), reachable.getRulesMod());
+		assertEquals(cleaned.getRulesRoot(), reachable.getRulesRoot());
+		assertEquals(cleaned.getFinalStates(), reachable.getFinalStates());
+
+		final FilterAutomaton forRoutes =
+			reachable.composeReachable(
+				ValidRoutePairs.routePairs(alphabet));
+		assertEquals(reachable.automatonForValidRoutes(alphabet)
+				.cleanInaccessibleStates().getRulesRoot(),
+			forRoutes.trim().getRulesRoot());
+	}
+
+	/**
+	 * Tests that trimming removes the states which cannot lead to a final 
+	 * state, and keeps the language of the automaton.
+	 */
+	public void testTrimRemovesUselessStates() {
+		final RouteAlphabet alphabet = 
+			new Filter(new ComAdd(10)).filterAlphabet();
+		final FilterAutomaton automaton = 
+			new ModFilterRule().automaton(alphabet);
+		final FilterState q0 = 
+			automaton.getRulesRoot().iterator().next()
+				.leftHandSide().states().get(0);
+		final FilterState qMod = new FilterState("qMod");
+		final FilterState qRoot = new FilterState("qRoot");
+		final Set<FilterState> states = 
+			new HashSet<FilterState>(automaton.getStates());
+		states.add(qMod);
+		states.add(qRoot);
+		final Set<IRule<LabelPair,FilterState>> rulesMod = 
+			new HashSet<IRule<LabelPair,FilterState>>(automaton.getRulesMod());
+		rulesMod.add(new BasicRule<LabelPair,FilterState>(
+			ActionAlphabet.ACCACC, qMod));
+		final Set<IRule<LabelPair,FilterState>> rulesRoot = 
+			new HashSet<IRule<LabelPair,FilterState>>(automaton.getRulesRoot());
+		rulesRoot.add(new BasicRule<LabelPair,FilterState>(
+			ActionAlphabet.RR, qRoot, q0, q0, q0, q0, qMod));
+		final FilterAutomaton withUseless = new FilterAutomaton(
+			automaton.getActionAlphabet(), states, automaton.getFinalStates(),
+			automaton.sinkState(), automaton.getRulesDest(), 
+			automaton.getRulesPath(), automaton.getRulesPref(), 
+			automaton.getRulesCom(), rulesMod, rulesRoot);
+
+		final FilterAutomaton trimmed = withUseless.trim();
+		assertFalse(trimmed.getStates().contains(qMod));
+		assertFalse(trimmed.getStates().contains(qRoot));
+		assertEquals(automaton.getRulesMod(), trimmed.getRulesMod());
+		assertEquals(automaton.getRulesRoot(), trimmed.getRulesRoot());
+		assertTrue("The trimmed automaton should be equivalent.",
+			withUseless.equivalent(trimmed));
+		assertSame(trimmed, trimmed.cleanUselessStates());
+	}
+
+	/**
+	 * Tests that renumbering the states of a filter automaton gives an
+	 * equivalent automaton, whose states can be traced back.
+	 */
+	public void testRenumberedAutomatonIsEquivalent() {
+		final Filter filter = FilterProvider.complexComAddAccept(3, 10);
+		final FilterAutomaton automaton =
+			filter.automaton(filter.filterAlphabet());
+		final StateRenumbering renumbering =
+			new StateRenumbering(automaton, true);
+		final FilterAutomaton renumbered = renumbering.automaton();
+
+		assertEquals(automaton.getStates().size(),
+			renumbered.getStates().size());
+		assertEquals(automaton.getFinalStates().size(),
+			renumbered.getFinalStates().size());
+		for (FilterState state : renumbered.getFinalStates()) {
+			assertTrue(automaton.getFinalStates().contains(
+				renumbering.originalState(state)));
+		}
+		assertTrue("The renumbered automaton should be equivalent.",
+			automaton.equivalent(renumbered));
+
+		// the identity branches of an action are kept as such
+		final RouteAlphabet routeAlphabet = 
+			new Filter(new PrefSet(130)).filterAlphabet();
+		final FilterAutomaton action = new PrefSet(130).automaton(
+			routeAlphabet, new ActionAlphabet(routeAlphabet));
+		final FilterAutomaton renumberedAction = 
+			new StateRenumbering(action).automaton();
+		assertSame(action.getRulesPath().getClass(),
+			renumberedAction.getRulesPath().getClass());
+		assertEquals(action.getRulesPath().size(),
+			renumberedAction.getRulesPath().size());
+		assertTrue("The renumbered action should be equivalent.",
+			action.equivalent(renumberedAction));
+	}
+
+	/**
+	 * Tests that renumbering the intermediate automata of filters gives 
+	 * automata whose states wrap integers, with the same verdicts.
+	 */
+	public void testRenumberedFilterAutomaton() {
+		final Filter[] filters = {
+			FilterProvider.complexComAddAccept(3, 10),
+			FilterProvider.simpleComAddAccept(10),
+			new Filter(new ComAdd(10), new ComRemove(20), new PathPrepend(3)),
+			new Filter(new ComRemove(20), new ComAdd(10), new PathPrepend(3))
+		};
+		RouteAlphabet union = filters[0].filterAlphabet();
+		for (Filter filter : filters) {
+			union = union.union(filter.filterAlphabet());
+		}
+		final RouteAlphabet alphabet = AlphabetCache.routeAlphabet(union);
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (Filter filter1 : filters) {
+				final FilterAutomaton automaton = filter1.automaton(alphabet);
+				final FilterAutomaton renumbered = 
+					filter1.automaton(alphabet, StateReduction.RENUMBER);
+				assertRenumbered(renumbered);
+				assertRenumbered(filter1.automaton(alphabet, pool, 
+					StateReduction.RENUMBER));
+				assertTrue("The renumbered automaton should be equivalent.",
+					automaton.equivalent(renumbered));
+				for (Filter filter2 : filters) {
+					assertEquals(automaton.equivalent(
+							filter2.automaton(alphabet)),
+						renumbered.equivalent(filter2.automaton(
+							alphabet, StateReduction.RENUMBER)));
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void assertRenumbered(final FilterAutomaton automaton) {
+		for (FilterState state : automaton.getStates()) {
+			assertNull(state.getLeftState());
+			assertTrue(state.toString().matches("[0-9]+"));
+		}
+	}
 }
@@ -0,0 +1,99 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.tests;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import be.ac.umons.info.routing.actions.atomic.ComAdd;
+import be.ac.umons.info.routing.actions.atomic.ComRemove;
+import be.ac.umons.info.routing.automata.ActionAlphabet;
+import be.ac.umons.info.routing.automata.FilterAutomaton;
+import be.ac.umons.info.routing.automata.FilterState;
+import be.ac.umons.info.routing.automata.IntegerLabel;
+import be.ac.umons.info.routing.automata.LabelPair;
+import be.ac.umons.info.routing.automata.RouteAlphabet;
+import be.ac.umons.info.routing.automata.RuleComposition;
+import traul.ranked.nta.rules.IRule;
+
+/**
+ * Compares the time needed to compose the COM branches of two actions, with
+ * the pairwise composition and with the indexed composition, for increasing
+ * sizes of the communities alphabet.
+ * Usage: CompositionBenchmark [maxComValues]
+ */
+public final class CompositionBenchmark {
+
+	private CompositionBenchmark() {
+	}
+
+	public static void main(final String[] args) {
+		final int maxComValues =
+			args.length > 0 ? Integer.parseInt(args[0]) : 320;
+		System.out.println("|com|\trules1\trules2\tresult\tpairwise(ms)\t"
+				+ "indexed(ms)");
+		for (int n = 10; n <= maxComValues; n *= 2) {
+			run(n);
+		}
+	}
+
+	private static void run(final int comValues) {
+		Set<IntegerLabel> destAlphabet = new HashSet<IntegerLabel>();
+		destAlphabet.add(RouteAlphabet.integer(1));
+		Set<IntegerLabel> asPathAlphabet = new HashSet<IntegerLabel>();
+		asPathAlphabet.add(RouteAlphabet.integer(1));
+		Set<IntegerLabel> prefAlphabet = new HashSet<IntegerLabel>();
+		prefAlphabet.add(RouteAlphabet.integer(100));
+		Set<IntegerLabel> comAlphabet = new HashSet<IntegerLabel>();
+		for (int i = 0; i < comValues; i++) {
+			comAlphabet.add(RouteAlphabet.integer(i));
+		}
+		final RouteAlphabet routeAlphabet = new RouteAlphabet(
+				destAlphabet, asPathAlphabet, prefAlphabet, comAlphabet);
+		final ActionAlphabet alphabet = new ActionAlphabet(routeAlphabet);
+
+		final FilterAutomaton automaton1 = new ComAdd(0)
+			.automaton(routeAlphabet, alphabet).addDiamondRules();
+		final FilterAutomaton automaton2 = new ComRemove(1)
+			.automaton(routeAlphabet, alphabet).addDiamondRules();
+
+		long start = System.currentTimeMillis();
+		final Set<IRule<LabelPair, FilterState>> pairwise =
+			PairwiseComposition.compose(automaton1, alphabet,
+					automaton1.getRulesCom(), automaton2.getRulesCom());
+		final long pairwiseTime = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		final Set<IRule<LabelPair, FilterState>> indexed =
+			new RuleComposition(alphabet).compose(
+					automaton1.getRulesCom(), automaton2.getRulesCom());
+		final long indexedTime = System.currentTimeMillis() - start;
+
+		if (!pairwise.equals(indexed)) {
+			throw new IllegalStateException(
+				"Pairwise and indexed compositions differ for |com|="
+				+ comValues);
+		}
+		System.out.println(comValues + "\t" + automaton1.getRulesCom().size()
+				+ "\t" + automaton2.getRulesCom().size()
+				+ "\t" + indexed.size() + "\t" + pairwiseTime
+				+ "\t" + indexedTime);
+	}
+}
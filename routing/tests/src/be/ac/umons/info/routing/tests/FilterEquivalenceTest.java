@@ -20,24 +20,40 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package be.ac.umons.info.routing.tests;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import junit.framework.TestCase;
 import be.ac.umons.info.routing.Filter;
+import be.ac.umons.info.routing.FilterClustering;
+import be.ac.umons.info.routing.FilterEquivalenceBatch;
 import be.ac.umons.info.routing.FilterRule;
+import be.ac.umons.info.routing.FilterVerificationSession;
 import be.ac.umons.info.routing.IFilterRule;
 import be.ac.umons.info.routing.actions.IAction;
 import be.ac.umons.info.routing.actions.atomic.Accept;
 import be.ac.umons.info.routing.actions.atomic.ComAdd;
 import be.ac.umons.info.routing.actions.atomic.ComRemove;
 import be.ac.umons.info.routing.actions.atomic.PathPrepend;
+import be.ac.umons.info.routing.actions.atomic.PrefSet;
 import be.ac.umons.info.routing.actions.atomic.Reject;
+import be.ac.umons.info.routing.automata.AlphabetAbstraction;
+import be.ac.umons.info.routing.automata.AlphabetCache;
+import be.ac.umons.info.routing.automata.EquivalenceStrategy;
 import be.ac.umons.info.routing.automata.FilterAutomaton;
+import be.ac.umons.info.routing.automata.IntegerLabel;
+import be.ac.umons.info.routing.automata.LabelPair;
+import be.ac.umons.info.routing.automata.NaryEquivalence;
 import be.ac.umons.info.routing.automata.RouteAlphabet;
 import be.ac.umons.info.routing.predicates.IPredicate;
 import be.ac.umons.info.routing.predicates.atomic.CommIn;
 import be.ac.umons.info.routing.predicates.atomic.PathNei;
+import traul.ranked.terms.ITerm;
 
 public class FilterEquivalenceTest extends TestCase{
 	
@@ -153,6 +169,249 @@ public class FilterEquivalenceTest extends TestCase{
 			filter1.equivalent(filter3));
 	}
 
+	/**
+	 * Checking equivalence up to congruence gives the same verdicts as the
+	 * product of the automata, and separating routes of this filter.
+	 */
+	public void testUnionFindStrategy() {
+
+		final Filter[][] pairs = {
+			{new Filter(new PathPrepend(30), new PathPrepend(20), 
+				new Accept(), new PathPrepend(50)),
+			 new Filter(new PathPrepend(30), new PathPrepend(20), 
+				new Accept())},
+			{new Filter(new PathPrepend(30), new ComAdd(20)),
+			 new Filter(new ComAdd(20), new PathPrepend(30))},
+			{new Filter(new ComRemove(30)),
+			 new Filter(new ComAdd(30), new ComRemove(30))},
+			{FilterProvider.simpleComAddAccept(20),
+			 FilterProvider.complexComAddAccept(10, 20)},
+			{new Filter(new PathPrepend(30)),
+			 new Filter(new PathPrepend(30), new PathPrepend(40))},
+			{new Filter(new ComAdd(20)),
+			 new Filter(new ComAdd(20), new ComRemove(30))}
+		};
+		final boolean[] verdicts = {true, true, true, true, false, false};
+		for (int i=0; i<pairs.length; i++) {
+			final Filter filter1 = pairs[i][0];
+			final Filter filter2 = pairs[i][1];
+			assertEquals(verdicts[i], filter1.equivalent(filter2, 
+				EquivalenceStrategy.UNION_FIND));
+			final ITerm<LabelPair> route = filter1.separatingRoute(filter2, 
+				EquivalenceStrategy.UNION_FIND);
+			assertEquals(filter1.separatingRoute(filter2) == null, 
+				route == null);
+			if (route != null) {
+				final RouteAlphabet alphabet = AlphabetCache.routeAlphabet(
+					filter1.filterAlphabet().union(filter2.filterAlphabet()));
+				assertTrue("The route should be transformed by the filter.",
+					filter1.automaton(alphabet).acceptsWithDiamonds(route));
+			}
+		}
+	}
+
+	public void testSmallestRouteStrategy() {
+
+		final Filter[][] pairs = {
+			{new Filter(new PathPrepend(30), new ComAdd(20)),
+			 new Filter(new ComAdd(20), new PathPrepend(30))},
+			{new Filter(new PathPrepend(30)),
+			 new Filter(new PathPrepend(30), new PathPrepend(40))},
+			{new Filter(new ComAdd(20)),
+			 new Filter(new ComAdd(20), new ComRemove(30))},
+			{FilterProvider.simpleComAddAccept(20),
+			 FilterProvider.complexComAddAccept(10, 30)}
+		};
+		for (int i=0; i<pairs.length; i++) {
+			final Filter filter1 = pairs[i][0];
+			final Filter filter2 = pairs[i][1];
+			final ITerm<LabelPair> productRoute = 
+				filter1.separatingRoute(filter2);
+			assertEquals(productRoute == null, filter1.equivalent(filter2, 
+				EquivalenceStrategy.SMALLEST_ROUTE));
+			final ITerm<LabelPair> route = filter1.separatingRoute(filter2, 
+				EquivalenceStrategy.SMALLEST_ROUTE);
+			assertEquals(productRoute == null, route == null);
+			if (route != null) {
+				final RouteAlphabet alphabet = AlphabetCache.routeAlphabet(
+					filter1.filterAlphabet().union(filter2.filterAlphabet()));
+				assertTrue("The route should be transformed by the filter.",
+					filter1.automaton(alphabet).acceptsWithDiamonds(route));
+				assertTrue("The route should be a smallest one.",
+					size(route) <= size(productRoute));
+			}
+		}
+	}
+
+	public void testSeparatingRoutes() {
+		final Filter filter1 = new Filter(new PrefSet(200), new ComAdd(20));
+		final Filter filter2 = new Filter(new ComAdd(30), new ComRemove(30));
+		final RouteAlphabet alphabet = AlphabetCache.routeAlphabet(
+			filter1.filterAlphabet().union(filter2.filterAlphabet()));
+		final Set<String> routes = new HashSet<String>();
+		final Iterator<ITerm<LabelPair>> iterator = 
+			filter1.separatingRoutes(filter2);
+		while (iterator.hasNext()) {
+			final ITerm<LabelPair> route = iterator.next();
+			final FilterAutomaton automaton = filter1.automaton(alphabet);
+			assertTrue("The route should be transformed by the filter.",
+				automaton.acceptsWithDiamonds(route));
+			assertFalse("The route should not be transformed by the other.",
+				filter2.automaton(alphabet).acceptsWithDiamonds(route));
+			assertTrue(automaton.addDiamondRules().accepts(route));
+			assertTrue("The routes should be distinct.", 
+				routes.add(route.toString()));
+		}
+		// the preference, with or without the communities, differs
+		assertTrue(routes.size() >= 2);
+		assertFalse(new Filter(new ComAdd(20)).separatingRoutes(
+			new Filter(new ComAdd(20))).hasNext());
+	}
+
+	public void testBatchEquivalence() {
+		final Filter reference = FilterProvider.simpleComAddAccept(20);
+		final List<Filter> candidates = new ArrayList<Filter>();
+		candidates.add(FilterProvider.complexComAddAccept(10, 20));
+		candidates.add(FilterProvider.complexComAddAccept(10, 30));
+		candidates.add(new Filter(new ComAdd(20)));
+		candidates.add(new Filter(new ComAdd(20), new PathPrepend(40)));
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		final boolean[] verdicts;
+		final FilterEquivalenceBatch.Result result;
+		try {
+			final FilterEquivalenceBatch batch = 
+				new FilterEquivalenceBatch(reference, pool);
+			verdicts = batch.equivalent(candidates);
+			result = batch.compare(candidates);
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(candidates.size(), verdicts.length);
+		assertEquals(candidates.size(), result.size());
+		for (int i=0; i<candidates.size(); i++) {
+			assertEquals(reference.equivalent(candidates.get(i)), verdicts[i]);
+			assertEquals(verdicts[i], result.equivalent(i));
+			assertEquals(verdicts[i], result.separatingRoute(i) == null);
+		}
+		assertTrue(verdicts[0]);
+		assertFalse(verdicts[3]);
+	}
+
+	public void testEquivalenceClasses() {
+		final List<Filter> filters = new ArrayList<Filter>();
+		filters.add(new Filter(new ComAdd(20)));
+		filters.add(new Filter(new PathPrepend(30)));
+		filters.add(new Filter(new ComRemove(20), new ComAdd(20)));
+		filters.add(FilterProvider.simpleComAddAccept(20));
+		filters.add(new Filter(new PathPrepend(30), new ComAdd(20)));
+		filters.add(FilterProvider.complexComAddAccept(10, 20));
+		filters.add(new Filter(new ComAdd(20), new PathPrepend(30)));
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		final List<List<Filter>> classes;
+		try {
+			classes = new FilterClustering(filters, pool).equivalenceClasses();
+		} finally {
+			pool.shutdown();
+		}
+		for (List<Filter> equivalenceClass : classes) {
+			for (Filter filter : equivalenceClass) {
+				assertTrue(filter.equivalent(equivalenceClass.get(0)));
+			}
+		}
+		for (int i=0; i<classes.size(); i++) {
+			for (int j=i+1; j<classes.size(); j++) {
+				assertFalse(classes.get(i).get(0).equivalent(
+					classes.get(j).get(0)));
+			}
+		}
+		int size = 0;
+		for (List<Filter> equivalenceClass : classes) {
+			size += equivalenceClass.size();
+		}
+		assertEquals(filters.size(), size);
+		assertSame(filters.get(0), classes.get(0).get(0));
+		assertSame(filters.get(2), classes.get(0).get(1));
+	}
+
+	public void testNaryEquivalence() {
+		final List<Filter> filters = new ArrayList<Filter>();
+		filters.add(new Filter(new ComAdd(20)));
+		filters.add(new Filter(new ComRemove(20), new ComAdd(20)));
+		filters.add(new Filter(new ComAdd(20), new ComAdd(20)));
+		assertTrue(Filter.equivalence(filters).equivalent());
+		assertTrue(Filter.equivalence(filters).disagreeing().isEmpty());
+
+		filters.add(new Filter(new ComAdd(20), new PathPrepend(30)));
+		filters.add(FilterProvider.simpleComAddAccept(20));
+		final NaryEquivalence equivalence = Filter.equivalence(filters);
+		assertFalse(equivalence.equivalent());
+		assertEquals(Arrays.asList(3, 4), equivalence.disagreeing());
+		final ITerm<LabelPair> route = equivalence.separationRoute();
+		final RouteAlphabet alphabet = AlphabetCache.routeAlphabet(
+			filters.get(0).filterAlphabet().union(
+				filters.get(3).filterAlphabet()));
+		assertTrue(filters.get(0).automaton(alphabet)
+			.acceptsWithDiamonds(route));
+		assertFalse(filters.get(3).automaton(alphabet)
+			.acceptsWithDiamonds(route));
+	}
+
+	public void testVerificationSession() {
+		final List<IFilterRule> rules = new ArrayList<IFilterRule>();
+		rules.add(new FilterRule(new CommIn(10), 
+			Arrays.<IAction>asList(new ComAdd(20))));
+		rules.add(new FilterRule(null, 
+			Arrays.<IAction>asList(new ComRemove(30))));
+		rules.add(new FilterRule(new PathNei(3561), 
+			Arrays.<IAction>asList(new Reject())));
+		final Filter reference = new Filter(rules);
+		final FilterVerificationSession session = 
+			new FilterVerificationSession(new Filter(rules), reference);
+		assertTrue(session.equivalent());
+
+		// same rule, written differently
+		session.replaceRule(1, new FilterRule(null, Arrays.<IAction>asList(
+			new ComAdd(30), new ComRemove(30))));
+		assertTrue(session.equivalent());
+		final RouteAlphabet alphabet = AlphabetCache.routeAlphabet(
+			session.getFilter().filterAlphabet().union(
+				reference.filterAlphabet()));
+		assertTrue(session.automaton().equivalent(
+			session.getFilter().automaton(alphabet)));
+
+		session.replaceRule(1, new FilterRule(null, 
+			Arrays.<IAction>asList(new ComAdd(30))));
+		assertFalse(session.equivalent());
+		assertEquals(reference.equivalent(session.getFilter()), 
+			session.equivalent());
+		final ITerm<LabelPair> route = session.separatingRoute();
+		assertNotNull(route);
+
+		// the previous route still separates both filters
+		session.replaceRule(0, new FilterRule(new CommIn(10), 
+			Arrays.<IAction>asList(new ComAdd(20), new ComAdd(20))));
+		assertFalse(session.equivalent());
+		assertSame(route, session.separatingRoute());
+
+		// a larger alphabet
+		session.replaceRule(2, new FilterRule(new PathNei(1234), 
+			Arrays.<IAction>asList(new Reject())));
+		assertEquals(reference.equivalent(session.getFilter()), 
+			session.equivalent());
+		session.replaceRule(1, new FilterRule(null, 
+			Arrays.<IAction>asList(new ComRemove(30))));
+		session.replaceRule(2, rules.get(2));
+		assertTrue(session.equivalent());
+	}
+
+	private static int size(final ITerm<LabelPair> term) {
+		int size = 1;
+		for (ITerm<LabelPair> child : term.children()) {
+			size += size(child);
+		}
+		return size;
+	}
+
 	/**
 	 * Test related to a bug mentioned by Laurent Vanbever on feb 20th 2012.
 	 */
@@ -183,4 +442,46 @@ public class FilterEquivalenceTest extends TestCase{
 				filter1.equivalent(filter2));
 	}
 
+	/**
+	 * Comparing filters on a larger alphabet than the referenced one: the
+	 * values which are not referenced are collapsed, and the verdicts should
+	 * be the same as on the concrete alphabet.
+	 */
+	public void testAbstractedAlphabet() {
+
+		Filter filter1 = new Filter(new ComAdd(20));
+		Filter filter2 = new Filter(new ComAdd(20), new ComRemove(30));
+		Filter filter3 = new Filter(new ComRemove(30), new ComAdd(20));
+
+		Set<IntegerLabel> none = Collections.emptySet();
+		Set<IntegerLabel> communities = new HashSet<IntegerLabel>();
+		for (int i = 1; i <= 8; i++) {
+			communities.add(RouteAlphabet.integer(i));
+		}
+		RouteAlphabet routeAlphabet = 
+			new RouteAlphabet(none, none, none, communities);
+		RouteAlphabet referenced = 
+			filter1.filterAlphabet().union(filter2.filterAlphabet());
+
+		AlphabetAbstraction abstraction = 
+			new AlphabetAbstraction(routeAlphabet, referenced);
+		assertEquals(RouteAlphabet.integer(1), 
+			abstraction.com().representative());
+		assertEquals(8, abstraction.com().values().size());
+		assertEquals(3, abstraction.abstractAlphabet().comAlphabet().size());
+
+		RouteAlphabet concrete = abstraction.concreteAlphabet();
+		assertEquals(
+			filter1.automaton(concrete).equivalent(filter2.automaton(concrete)),
+			filter1.equivalent(filter2, routeAlphabet));
+		assertFalse("These two filters should not be equivalent.",
+			filter1.equivalent(filter2, routeAlphabet));
+		assertNotNull("There should be a separating route.",
+			filter1.separatingRoute(filter2, routeAlphabet));
+		assertTrue("These two filters should be equivalent.",
+			filter2.equivalent(filter3, routeAlphabet));
+		assertNull("There should be no separating route.",
+			filter2.separatingRoute(filter3, routeAlphabet));
+	}
+
 }
@@ -22,6 +22,7 @@ package be.ac.umons.info.routing.tests;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import junit.framework.TestCase;
 import be.ac.umons.info.routing.Filter;
@@ -32,10 +33,15 @@ import be.ac.umons.info.routing.actions.atomic.Accept;
 import be.ac.umons.info.routing.actions.atomic.ComAdd;
 import be.ac.umons.info.routing.actions.atomic.ComRemove;
 import be.ac.umons.info.routing.actions.atomic.PathPrepend;
+import be.ac.umons.info.routing.actions.atomic.PrefSet;
 import be.ac.umons.info.routing.automata.ActionAlphabet;
+import be.ac.umons.info.routing.automata.CompositionPlanner;
 import be.ac.umons.info.routing.automata.FilterAutomaton;
 import be.ac.umons.info.routing.automata.LabelPair;
 import be.ac.umons.info.routing.automata.RouteAlphabet;
+import be.ac.umons.info.routing.predicates.atomic.CommIn;
+import be.ac.umons.info.routing.predicates.atomic.PathIn;
+import be.ac.umons.info.routing.predicates.atomic.PathNei;
 import traul.ranked.terms.ITerm;
 
 public class FilterTest extends TestCase {
@@ -508,4 +514,65 @@ public class FilterTest extends TestCase {
 		assertFalse("The automaton should not accept the routing tree.",
 				automaton.accepts(tree2));
 	}
+
+	/**
+	 * Tests that building the automaton of a filter in parallel gives an
+	 * equivalent automaton.
+	 */
+	public void testParallelAutomaton() {
+		final Filter filter = fourRuleFilter();
+		final RouteAlphabet alphabet = filter.filterAlphabet();
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			final FilterAutomaton automaton = filter.automaton(alphabet, pool);
+			automaton.checkIntegrity();
+			assertTrue("The automata should be equivalent.",
+				automaton.equivalent(filter.automaton(alphabet)));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that composing the automata of the rules in the order chosen by
+	 * a planner gives an equivalent automaton, and that the plan is reported.
+	 */
+	public void testPlannedAutomaton() {
+		final Filter filter = fourRuleFilter();
+		final RouteAlphabet alphabet = filter.filterAlphabet();
+		final CompositionPlanner planner = new CompositionPlanner();
+		final FilterAutomaton automaton = filter.automaton(alphabet, planner);
+		automaton.checkIntegrity();
+		assertTrue("The automata should be equivalent.",
+			automaton.equivalent(filter.automaton(alphabet)));
+		
+		// one plan for the actions of the second rule, one for the rules
+		assertEquals(2, planner.plans().size());
+		final CompositionPlanner.Plan plan = planner.plans().get(1);
+		assertEquals(3, plan.steps().size());
+		for (int i=0; i<4; i++) {
+			assertTrue(plan.grouping().contains(Integer.toString(i)));
+		}
+		final CompositionPlanner.Step last = plan.steps().get(2);
+		assertEquals(0, last.from());
+		assertEquals(3, last.to());
+		assertTrue(last.actualRules() > 0);
+	}
+
+	private static Filter fourRuleFilter() {
+		final List<IAction> actions1 = new ArrayList<IAction>();
+		actions1.add(new ComAdd(10));
+		final List<IAction> actions2 = new ArrayList<IAction>();
+		actions2.add(new ComRemove(20));
+		actions2.add(new PathPrepend(3));
+		final List<IAction> actions3 = new ArrayList<IAction>();
+		actions3.add(new PrefSet(80));
+		final List<IAction> actions4 = new ArrayList<IAction>();
+		actions4.add(new Accept());
+		return FilterProvider.filterFromRules(
+			new FilterRule(new CommIn(20), actions1),
+			new FilterRule(new PathIn(4), actions2),
+			new FilterRule(new PathNei(7), actions3),
+			new FilterRule(new CommIn(10), actions4));
+	}
 }
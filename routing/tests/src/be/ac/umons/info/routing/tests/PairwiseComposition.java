@@ -0,0 +1,102 @@
+/*
+routing-equiv: testing the equivalence of routing policies
+Copyright (C) 2013 routing-equiv team
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+
+package be.ac.umons.info.routing.tests;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import be.ac.umons.info.routing.automata.ActionAlphabet;
+import be.ac.umons.info.routing.automata.FilterAutomaton;
+import be.ac.umons.info.routing.automata.FilterState;
+import be.ac.umons.info.routing.automata.LabelPair;
+import traul.ranked.nta.rules.BasicRule;
+import traul.ranked.nta.rules.IRule;
+
+/**
+ * Reference composition of two sets of rules, checking every pair of rules.
+ * It is used to validate (and benchmark) the indexed composition of
+ * {@link be.ac.umons.info.routing.automata.RuleComposition}.
+ */
+public final class PairwiseComposition {
+
+	private PairwiseComposition() {
+	}
+
+	/**
+	 * Computes the composition of two sets of rules, by a nested loop.
+	 */
+	public static Set<IRule<LabelPair, FilterState>> compose(
+			final FilterAutomaton automaton,
+			final ActionAlphabet alphabet,
+			final Set<IRule<LabelPair, FilterState>> rules1,
+			final Set<IRule<LabelPair, FilterState>> rules2) {
+
+		Set<IRule<LabelPair, FilterState>> rulesResult =
+			new HashSet<IRule<LabelPair, FilterState>>();
+
+		for (IRule<LabelPair, FilterState> rule1 : rules1) {
+			for (IRule<LabelPair, FilterState> rule2 : rules2) {
+				if (rule1.label().right().equals(rule2.label().left()) && (
+						rule1.leftStates().size()== rule2.leftStates().size()||
+						rule1.leftStates().size()==0 &&
+							rule2.leftStates().size()==1||
+						rule1.leftStates().size()==1 &&
+							rule2.leftStates().size()==0)) {
+					List<FilterState> leftStatesResult =
+						new ArrayList<FilterState>();
+					if (rule1.leftStates().size()==0 &&
+							rule2.leftStates().size()==1) {
+						leftStatesResult.add(new FilterState(
+								new FilterState("qDiamond"),
+								rule2.leftStates().get(0)));
+					} else if (rule1.leftStates().size()==1 &&
+							rule2.leftStates().size()==0) {
+						leftStatesResult.add(new FilterState(
+								rule1.leftStates().get(0),
+								new FilterState("qDiamond")));
+					} else {
+						for (int i=0;i<rule1.leftStates().size();i++) {
+							leftStatesResult.add(
+									new FilterState(rule1.leftStates().get(i),
+									rule2.leftStates().get(i)));
+						}
+					}
+					final LabelPair label =
+						new LabelPair(
+								rule1.label().left(), rule2.label().right());
+					if (alphabet.arity(label)==leftStatesResult.size()) {
+						rulesResult.add(new BasicRule<LabelPair, FilterState>(
+								leftStatesResult, label,
+								new FilterState(rule1.rightState(),
+										rule2.rightState())));
+					} else if (alphabet.arity(label)==0)	{
+						rulesResult.add(new BasicRule<LabelPair, FilterState>(
+								new ArrayList<FilterState>(), label,
+								new FilterState(rule1.rightState(),
+										rule2.rightState())));
+					}
+				}
+			}
+		}
+		return automaton.cleanDiamondRules(alphabet, rulesResult);
+	}
+}
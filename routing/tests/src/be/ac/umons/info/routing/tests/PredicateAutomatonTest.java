@@ -524,6 +524,43 @@ public class PredicateAutomatonTest extends TestCase{
 			automaton.accepts(tree3));
 }
 	
+	/**
+	 * Tests that minimizing a predicate automaton keeps it deterministic and
+	 * does not change its language.
+	 */
+	public void testMinimizedPredicate() {
+
+		final IPredicate predicate = 
+			new PredicateOr(new PathOri(10), new PathNei(50));
+		RouteAlphabet alphabet = alphabetForPredicate(predicate);
+		alphabet = alphabet.union(new Filter(
+			new PathPrepend(20), new PathPrepend(70)).filterAlphabet());
+		final PredicateAutomaton automaton = predicate.automaton(alphabet);
+		final PredicateAutomaton minimized = automaton.minimize();
+
+		assertTrue(minimized.getStates().size() <= 
+			automaton.getStates().size());
+		assertTrue("The automaton should be deterministic.",
+			minimized.isDeterministic());
+
+		List<ILabel> destList = Collections.<ILabel>singletonList(
+			RouteAlphabet.DEST);
+		ILabel prefVal = RouteAlphabet.integer(Filter.DEFAULT_LOCAL_PREF);
+		List<ILabel> comList = Collections.<ILabel>singletonList(
+			RouteAlphabet.COM);
+		final int[][] paths = {{10, 50, 20, 70}, {50}, {20}, {70, 10}};
+		for (int[] path : paths) {
+			List<ILabel> pathList = new ArrayList<ILabel>();
+			for (int as : path) {
+				pathList.add(RouteAlphabet.integer(as));
+			}
+			pathList.add(RouteAlphabet.PATH);
+			ITerm<ILabel> tree = PredicateTree.getPredicateTree(destList, 
+				pathList, prefVal, comList, RouteAlphabet.MODIFIED, alphabet);
+			assertEquals(automaton.accepts(tree), minimized.accepts(tree));
+		}
+	}
+
 	public void testComplementCommIn() {
 		
 		final int notinValue = 40;